@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,7 +179,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
 	int paddr = ppn*pageSize;
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
@@ -192,10 +191,23 @@ public class CoffSection {
 	else
 	    initlen = pageSize;
 
-	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	if (initlen > 0) {
+	    // read straight into physical memory when it is a heap array
+	    byte[] memory = processor.getMemoryArray();
+	    if (memory != null) {
+		Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+		processor.invalidateMemory(paddr, initlen);
+	    }
+	    else {
+		if (scratchPage == null)
+		    scratchPage = new byte[pageSize];
+
+		Lib.strictReadFile(file, faddr, scratchPage, 0, initlen);
+		processor.writeMemory(paddr, scratchPage, 0, initlen);
+	    }
+	}
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	processor.fillMemory(paddr+initlen, pageSize-initlen, (byte) 0);
     }
 
     /** The COFF object to which this section belongs. */
@@ -216,6 +228,8 @@ public class CoffSection {
 
     private OpenFile file;
     private int contentOffset, size;
+    /** A page buffer for loading when memory is not a heap array. */
+    private byte[] scratchPage = null;
 
     /** The length of a COFF section header. */
     public static final int headerLength = 40;
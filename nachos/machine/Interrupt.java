@@ -5,9 +5,8 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -25,6 +24,8 @@ import java.util.SortedSet;
  * <ul>
  * <li>interrupts are enabled, when they were previously disabled
  * <li>a MIPS instruction is executed
+ * <li>no thread is ready to run, in which case time skips ahead to the next
+ * pending interrupt (see <tt>idle()</tt>)
  * </ul>
  *
  * <p>
@@ -54,7 +55,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	wheel = new PendingInterrupt[wheelSize];
     }
 
     /**
@@ -124,17 +125,49 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the last kernel tick before the next
+     * pending interrupt is due. Called with interrupts disabled when no
+     * thread is ready to run, so that nothing can happen until that interrupt
+     * occurs.
+     *
+     * <p>
+     * The time skipped is counted as kernel time, in whole kernel ticks, so
+     * the next <tt>tick(true)</tt> handles the interrupt at exactly the time
+     * it would have been handled had the idle thread kept yielding. The
+     * skipped ticks are not printed one by one, as <tt>tick(true)</tt>
+     * prints them; one line is printed instead, if interrupt debugging is
+     * on. They would have been charged to the idle thread, which has no
+     * time slice, so no thread's time slice is charged for them.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	long untilDue = getTimeUntilDue();
+	if (untilDue == Long.MAX_VALUE || untilDue <= Stats.KernelTick)
+	    return;
+
+	long skipped = (untilDue-1) / Stats.KernelTick * Stats.KernelTick;
+
+	Stats stats = privilege.stats;
+	stats.kernelTicks += skipped;
+	stats.totalTicks += skipped;
+
+	Lib.debug(dbgInt, "Idle: skipped " + skipped/Stats.KernelTick +
+		  " ticks, until time = " + stats.totalTicks);
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	add(toOccur);
     }
 
     //TODO:tick
@@ -161,6 +194,28 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private void tickUser(int numInstructions) {
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) Stats.UserTick * numInstructions;
+	stats.totalTicks += (long) Stats.UserTick * numInstructions;
+
+	if (Lib.test(dbgInt))
+	    System.out.println("== Tick " + stats.totalTicks + " ==");
+
+	enabled = false;
+	checkIfDue();
+	enabled = true;
+    }
+
+    private long getTimeUntilDue() {
+	PendingInterrupt first = first();
+	if (first == null)
+	    return Long.MAX_VALUE;
+
+	return first.time - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -168,28 +223,24 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-	
-	/*System.out.println("((PendingInterrupt) pending.first()).time="+((PendingInterrupt) pending.first()).time);
-	System.out.println("time="+time);*/
-	
-	if (((PendingInterrupt) pending.first()).time > time)
+	PendingInterrupt first = first();
+	if (first == null || first.time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-	    Lib.assertTrue(next.time <= time);
+	while (first != null && first.time <= time) {
+	    removeFirst();
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
-			
-	    next.handler.run();
+	    Lib.debug(dbgInt, "  " + first.type);
+
+	    Runnable handler = first.handler;
+	    release(first);
+	    handler.run();
+
+	    first = first();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -200,8 +251,16 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	ArrayList<PendingInterrupt> all = new ArrayList<PendingInterrupt>();
+	for (int i=0; i<wheelSize; i++) {
+	    for (PendingInterrupt p=wheel[i]; p!=null; p=p.next)
+		all.add(p);
+	}
+	for (PendingInterrupt p=overflow; p!=null; p=p.next)
+	    all.add(p);
+	Collections.sort(all);
+
+	for (PendingInterrupt toOccur : all) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -209,17 +268,145 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Return a pending interrupt with the specified parameters, reusing a
+     * previously released one if possible.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.next;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.next = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a pending interrupt that is no longer in the queue to the free
+     * list.
+     */
+    private void release(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.next = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add a pending interrupt to the queue. If it is due within
+     * <tt>wheelSize</tt> ticks of <tt>wheelBase</tt>, it goes in the wheel
+     * slot for its time, which holds only interrupts due at that time, in
+     * order of <tt>id</tt>. Otherwise it goes in the overflow list, which is
+     * kept sorted.
+     */
+    private void add(PendingInterrupt toOccur) {
+	Lib.assertTrue(toOccur.time >= wheelBase);
+
+	if (toOccur.time - wheelBase < wheelSize) {
+	    insertInWheel(toOccur);
+	}
+	else {
+	    PendingInterrupt prev = null, p = overflow;
+	    while (p != null && p.compareTo(toOccur) < 0) {
+		prev = p;
+		p = p.next;
+	    }
+	    toOccur.next = p;
+	    if (prev == null)
+		overflow = toOccur;
+	    else
+		prev.next = toOccur;
+	}
+
+	if (firstCached && (first == null || toOccur.compareTo(first) < 0))
+	    first = toOccur;
+    }
+
+    private void insertInWheel(PendingInterrupt toOccur) {
+	int slot = (int) (toOccur.time & (wheelSize-1));
+
+	// usually appended, since ids increase
+	PendingInterrupt prev = null, p = wheel[slot];
+	while (p != null && p.id < toOccur.id) {
+	    prev = p;
+	    p = p.next;
+	}
+	toOccur.next = p;
+	if (prev == null)
+	    wheel[slot] = toOccur;
+	else
+	    prev.next = toOccur;
+
+	wheelCount++;
+    }
+
+    /**
+     * Return the pending interrupt that is due first, or <tt>null</tt> if
+     * none is pending.
+     *
+     * <p>
+     * Also advances <tt>wheelBase</tt> as far as possible: to the time of
+     * that interrupt, but never past the earliest time a new interrupt could
+     * be scheduled for. Interrupts in the overflow list that come within
+     * range of the wheel are moved into it.
+     */
+    private PendingInterrupt first() {
+	if (firstCached)
+	    return first;
+
+	PendingInterrupt next = overflow;
+	if (wheelCount > 0) {
+	    long time = wheelBase;
+	    while (wheel[(int) (time & (wheelSize-1))] == null)
+		time++;
+	    next = wheel[(int) (time & (wheelSize-1))];
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	if (next != null) {
+	    wheelBase = Math.min(next.time, privilege.stats.totalTicks + 1);
 
+	    while (overflow != null && overflow.time - wheelBase < wheelSize) {
+		PendingInterrupt p = overflow;
+		overflow = p.next;
+		insertInWheel(p);
+	    }
+	}
+
+	first = next;
+	firstCached = true;
+	return first;
+    }
+
+    /**
+     * Remove the pending interrupt returned by <tt>first()</tt>.
+     */
+    private void removeFirst() {
+	PendingInterrupt toOccur = first();
+	int slot = (int) (toOccur.time & (wheelSize-1));
+
+	if (wheel[slot] == toOccur) {
+	    wheel[slot] = toOccur.next;
+	    wheelCount--;
+	}
+	else {
+	    Lib.assertTrue(overflow == toOccur);
+	    overflow = toOccur.next;
+	}
+	toOccur.next = null;
+
+	firstCached = false;
+    }
+
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -238,6 +425,8 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next interrupt in the same wheel slot, list, or free list. */
+	private PendingInterrupt next;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -245,7 +434,26 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * Pending interrupts due within <tt>wheelSize</tt> ticks of
+     * <tt>wheelBase</tt>, indexed by time modulo <tt>wheelSize</tt>.
+     */
+    private PendingInterrupt[] wheel;
+    /** Number of slots in the wheel. Must be a power of 2. */
+    private static final int wheelSize = 256;
+    /** No interrupt in the wheel is due before this time. */
+    private long wheelBase = 0;
+    /** Number of interrupts in the wheel. */
+    private int wheelCount = 0;
+    /** Pending interrupts not yet in range of the wheel, in order. */
+    private PendingInterrupt overflow = null;
+    /** Released interrupts, available for reuse. */
+    private PendingInterrupt freeList = null;
+    /** <tt>true</tt> if <tt>first</tt> is up to date. */
+    private boolean firstCached = true;
+    /** The pending interrupt that is due first, if <tt>firstCached</tt>. */
+    private PendingInterrupt first = null;
 
     private static final char dbgInt = 'i';
 
@@ -257,5 +465,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tickUser(int numInstructions) {
+	    Interrupt.this.tickUser(numInstructions);
+	}
+
+	public long getTimeUntilDue() {
+	    return Interrupt.this.getTimeUntilDue();
+	}
     }
 }
@@ -57,6 +57,31 @@ public final class Lib {
 	return random.nextInt(range);
     }
 
+    /**
+     * Return a random long between 0 and <i>range - 1</i>. Must not be
+     * called before <tt>seedRandom()</tt> seeds the random number generator.
+     * For ranges that fit in an int, same as <tt>random((int) range)</tt>.
+     *
+     * @param	range	a positive value specifying the number of possible
+     *			return values.
+     * @return	a random long in the specified range.
+     */
+    public static long random(long range) {
+	assertTrue(range > 0);
+
+	if (range <= Integer.MAX_VALUE)
+	    return random.nextInt((int) range);
+
+	// reject the incomplete last interval, so every value is equally likely
+	long bits, value;
+	do {
+	    bits = random.nextLong() >>> 1;
+	    value = bits % range;
+	} while (bits - value + (range-1) < 0);
+
+	return value;
+    }
+
     /**
      * Return a random double between 0.0 (inclusive) and 1.0 (exclusive).
      *
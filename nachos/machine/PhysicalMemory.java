@@ -0,0 +1,200 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * The physical memory attached to a simulated processor. The memory is
+ * stored in a <tt>ByteBuffer</tt>, which can be on the Java heap, in a
+ * direct buffer outside the heap, or mapped from a file. Words are always
+ * accessed in little-endian byte order, regardless of the host.
+ *
+ * <p>
+ * The backing store is selected by the <tt>Processor.memory</tt>
+ * configuration key, which may be <tt>heap</tt> (the default),
+ * <tt>direct</tt>, or <tt>mapped</tt>. A mapped memory uses the file named
+ * by the <tt>Processor.memoryFile</tt> key, which is created or resized as
+ * necessary.
+ */
+final class PhysicalMemory {
+    /**
+     * Allocate a new physical memory of the specified size, using the backing
+     * store selected by the configuration.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	size		the size of the memory, in bytes.
+     */
+    PhysicalMemory(Privilege privilege, int size) {
+	this.size = size;
+
+	String kind = Config.getString("Processor.memory", "heap");
+
+	if (kind.equals("heap")) {
+	    buffer = ByteBuffer.wrap(new byte[size]);
+	}
+	else if (kind.equals("direct")) {
+	    buffer = ByteBuffer.allocateDirect(size);
+	}
+	else if (kind.equals("mapped")) {
+	    buffer = map(privilege, Config.getString("Processor.memoryFile"),
+			 size);
+	}
+	else {
+	    Lib.assertNotReached("unknown Processor.memory: " + kind);
+	    buffer = null;
+	}
+
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer map(Privilege privilege, final String fileName,
+				  final int size) {
+	Lib.assertTrue(fileName != null, "Processor.memoryFile not specified");
+
+	try {
+	    return (ByteBuffer) privilege.doPrivileged(
+		new PrivilegedExceptionAction() {
+		    public Object run() throws IOException {
+			RandomAccessFile file =
+			    new RandomAccessFile(new File(fileName), "rw");
+			try {
+			    file.setLength(size);
+			    return file.getChannel().map(
+				FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			finally {
+			    file.close();
+			}
+		    }
+		});
+	}
+	catch (PrivilegedActionException e) {
+	    Lib.assertNotReached("could not map " + fileName + ": " +
+				 e.getException());
+	    return null;
+	}
+    }
+
+    /**
+     * Return the size of this memory.
+     *
+     * @return	the size of this memory, in bytes.
+     */
+    int size() {
+	return size;
+    }
+
+    /**
+     * Return the array backing this memory, if it is stored on the heap.
+     *
+     * @return	the backing array, or <tt>null</tt> if this memory is not
+     *		stored in an array.
+     */
+    byte[] array() {
+	return buffer.hasArray() ? buffer.array() : null;
+    }
+
+    /**
+     * Read a 1, 2, or 4 byte value, sign-extending it to an int. Same as
+     * <tt>Lib.bytesToInt()</tt> applied to the contents of this memory.
+     *
+     * @param	paddr	the physical address of the value.
+     * @param	length	the size of the value (1, 2, or 4).
+     * @return	the value read.
+     */
+    int readInt(int paddr, int length) {
+	switch (length) {
+	case 4:
+	    return (int) intView.get(buffer, paddr);
+	case 2:
+	    return (short) shortView.get(buffer, paddr);
+	default:
+	    return buffer.get(paddr);
+	}
+    }
+
+    /**
+     * Write the low 1, 2, or 4 bytes of a value. Same as
+     * <tt>Lib.bytesFromInt()</tt> applied to the contents of this memory.
+     *
+     * @param	paddr	the physical address to write to.
+     * @param	length	the size of the value (1, 2, or 4).
+     * @param	value	the value to write.
+     */
+    void writeInt(int paddr, int length, int value) {
+	switch (length) {
+	case 4:
+	    intView.set(buffer, paddr, value);
+	    break;
+	case 2:
+	    shortView.set(buffer, paddr, (short) value);
+	    break;
+	default:
+	    buffer.put(paddr, (byte) value);
+	    break;
+	}
+    }
+
+    /**
+     * Copy bytes from this memory into an array.
+     *
+     * @param	paddr	the first physical address to copy from.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    void read(int paddr, byte[] data, int offset, int length) {
+	ByteBuffer view = buffer.duplicate();
+	view.position(paddr);
+	view.get(data, offset, length);
+    }
+
+    /**
+     * Copy bytes from an array into this memory.
+     *
+     * @param	paddr	the first physical address to copy to.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    void write(int paddr, byte[] data, int offset, int length) {
+	ByteBuffer view = buffer.duplicate();
+	view.position(paddr);
+	view.put(data, offset, length);
+    }
+
+    /**
+     * Set a range of this memory to a single value.
+     *
+     * @param	paddr	the first physical address to set.
+     * @param	length	the number of bytes to set.
+     * @param	value	the value to store in each byte.
+     */
+    void fill(int paddr, int length, byte value) {
+	for (int i=0; i<length; i++)
+	    buffer.put(paddr+i, value);
+    }
+
+    private int size;
+    private ByteBuffer buffer;
+
+    private static final VarHandle intView =
+	MethodHandles.byteBufferViewVarHandle(int[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle shortView =
+	MethodHandles.byteBufferViewVarHandle(short[].class,
+					      ByteOrder.LITTLE_ENDIAN);
+}
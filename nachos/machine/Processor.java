@@ -45,12 +45,22 @@ public final class Processor {
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize);
+	mainMemory = new PhysicalMemory(privilege, pageSize * numPhysPages);
+
+	decodeCache = new DecodedPage[numPhysPages];
+
+	debugMemory = Lib.test(dbgProcessor);
+
+	useBasicBlocks = Config.getBoolean("Processor.basicBlocks", false);
+	compileThreshold = Config.getInteger("Processor.compileThreshold", 0);
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    tlbCache = new TranslationEntry[tlbCacheSize];
 	}
 	else {
 	    translations = null;
@@ -83,6 +93,14 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * Unless a processor debugging flag is enabled, instructions are executed
+     * in batches that end just as the next pending interrupt becomes due (see
+     * <tt>runBatch()</tt>). If the <tt>Processor.basicBlocks</tt>
+     * configuration key is set, each batch is executed a basic block at a
+     * time (see <tt>runBlock()</tt>). With debugging enabled, simulated time
+     * is advanced after every instruction.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -94,6 +112,12 @@ public final class Processor {
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    if (!Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+		!Lib.test(dbgFullDisassemble)) {
+		runBatch(inst);
+		continue;
+	    }
+	    
 	    try {
 		inst.run();
 	    }
@@ -105,6 +129,104 @@ public final class Processor {
 	}
     }
 
+    /**
+     * Execute instructions starting at the current PC, up to and including
+     * the instruction after which the next pending interrupt is due, and
+     * advance the simulated time once for all the instructions executed.
+     *
+     * <p>
+     * No interrupt can become due, and no interrupt can be scheduled, until
+     * either the batch ends or an instruction causes a user exception. In the
+     * latter case the time taken by the instructions before it is accounted
+     * for before the exception is handled. Hence the simulated time at which
+     * each interrupt and exception is handled is exactly the same as when
+     * advancing the time after every instruction.
+     *
+     * @param	inst	the instruction state to execute with.
+     */
+    private void runBatch(Instruction inst) {
+	long untilDue = privilege.interrupt.getTimeUntilDue();
+	int limit = maxBatchSize;
+	if (untilDue < (long) limit * Stats.UserTick)
+	    limit = (int) Math.max((untilDue+Stats.UserTick-1) / Stats.UserTick,
+				   1);
+
+	executed = 0;
+	try {
+	    while (executed < limit) {
+		if (useBasicBlocks) {
+		    runBlock(inst, limit);
+		}
+		else {
+		    inst.run();
+		    executed++;
+		}
+	    }
+	}
+	catch (MipsException e) {
+	    // no interrupt can be due before the faulting instruction
+	    if (executed > 0)
+		privilege.interrupt.tickUser(executed);
+	    
+	    e.handle();
+	    privilege.interrupt.tick(false);
+	    return;
+	}
+
+	privilege.interrupt.tickUser(executed);
+    }
+
+    /**
+     * Execute the basic block starting at the current PC, as part of the
+     * current batch (see <tt>runBatch()</tt>). Adds the number of
+     * instructions executed to <tt>executed</tt>.
+     *
+     * <p>
+     * A basic block is a run of consecutive instructions within a single page
+     * that ends with a branch, a jump, or a syscall. Execution leaves the
+     * block early if the PC stops following it (e.g. after a taken branch's
+     * delay slot), if the block's page is written, or if a user exception
+     * occurs. The block is also cut short so that the batch never runs more
+     * than <i>limit</i> instructions.
+     *
+     * <p>
+     * If the <tt>Processor.compileThreshold</tt> configuration key is
+     * positive, a block that has been run that many times is compiled (see
+     * <tt>compileBlock()</tt>), and its compiled form is used from then on.
+     *
+     * @param	inst	the instruction state to execute with.
+     * @param	limit	the maximum number of instructions in the batch.
+     * @exception	MipsException	if a user exception occurred.
+     */
+    private void runBlock(Instruction inst, int limit) throws MipsException {
+	int pc = registers[regPC];
+	int paddr = translate(pc, 4, false);
+
+	int ppn = paddr / pageSize;
+	BasicBlock block = fetchBlock(paddr);
+	DecodedPage page = decodeCache[ppn];
+
+	if (block.compiled == null && compileThreshold > 0 &&
+	    ++block.executions >= compileThreshold)
+	    block.compiled = compileBlock(block, inst);
+
+	CompiledOp[] compiled = block.compiled;
+
+	int length = Math.min(block.instructions.length, limit - executed);
+
+	for (int i=0; i<length; i++) {
+	    // stop if control left the block, or the block was overwritten
+	    if (registers[regPC] != pc + i*4 || decodeCache[ppn] != page)
+		break;
+		
+	    if (compiled != null)
+		compiled[i].run();
+	    else
+		inst.run(block.instructions[i]);
+	    executed++;
+	}
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -215,6 +337,10 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	// the old and new vpn may both have been cached
+	invalidateTLBCache(translations[number].vpn);
+	invalidateTLBCache(entry.vpn);
+
 	translations[number] = new TranslationEntry(entry);
     }
 
@@ -230,12 +356,116 @@ public final class Processor {
 
     /**
      * Return a reference to the physical memory array. The size of this array
-     * is <tt>pageSize * getNumPhysPages()</tt>.
+     * is <tt>pageSize * getNumPhysPages()</tt>. Only available if physical
+     * memory is stored on the heap (see <tt>Processor.memory</tt>); prefer
+     * <tt>readMemory()</tt> and <tt>writeMemory()</tt>, which work with any
+     * backing store.
+     *
+     * <p>
+     * Since the caller may modify any page through the returned array, this
+     * discards all pre-decoded instructions. Callers should not hold on to
+     * the array across the execution of user instructions.
      *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
-	return mainMemory;
+	byte[] array = mainMemory.array();
+	Lib.assertTrue(array != null, "physical memory is not on the heap");
+	
+	flushDecodeCache();
+	
+	return array;
+    }
+
+    /**
+     * Return the physical memory array if physical memory is stored on the
+     * heap, or <tt>null</tt> otherwise. Unlike <tt>getMemory()</tt>, this
+     * does not discard any pre-decoded instructions, so a caller that writes
+     * physical memory through the array must then call
+     * <tt>invalidateMemory()</tt> for the range it wrote.
+     *
+     * @return	the main memory array, or <tt>null</tt>.
+     */
+    public byte[] getMemoryArray() {
+	return mainMemory.array();
+    }
+
+    /**
+     * Discard the pre-decoded instructions of every page in the specified
+     * range of physical memory, after it was written through the array
+     * returned by <tt>getMemoryArray()</tt>.
+     *
+     * @param	paddr	the first physical address that was written.
+     * @param	length	the number of bytes that were written.
+     */
+    public void invalidateMemory(int paddr, int length) {
+	checkMemoryRange(paddr, length);
+
+	invalidateDecodeCache(paddr, length);
+    }
+
+    /**
+     * Return the size of physical memory. Same as
+     * <tt>pageSize * getNumPhysPages()</tt>.
+     *
+     * @return	the size of physical memory, in bytes.
+     */
+    public int getMemorySize() {
+	return mainMemory.size();
+    }
+
+    /**
+     * Copy bytes from physical memory into an array.
+     *
+     * @param	paddr	the first physical address to copy from.
+     * @param	data	the array to copy into.
+     * @param	offset	the first byte to write in the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void readMemory(int paddr, byte[] data, int offset, int length) {
+	checkMemoryRange(paddr, length);
+	Lib.assertTrue(offset >= 0 && offset <= data.length - length);
+
+	mainMemory.read(paddr, data, offset, length);
+    }
+
+    /**
+     * Copy bytes from an array into physical memory. Pre-decoded
+     * instructions are discarded only for the pages that are written.
+     *
+     * @param	paddr	the first physical address to copy to.
+     * @param	data	the array to copy from.
+     * @param	offset	the first byte to read from the array.
+     * @param	length	the number of bytes to copy.
+     */
+    public void writeMemory(int paddr, byte[] data, int offset, int length) {
+	checkMemoryRange(paddr, length);
+	Lib.assertTrue(offset >= 0 && offset <= data.length - length);
+
+	invalidateDecodeCache(paddr, length);
+
+	mainMemory.write(paddr, data, offset, length);
+    }
+
+    /**
+     * Set a range of physical memory to a single value. Pre-decoded
+     * instructions are discarded only for the pages that are written.
+     *
+     * @param	paddr	the first physical address to set.
+     * @param	length	the number of bytes to set.
+     * @param	value	the value to store in each byte.
+     */
+    public void fillMemory(int paddr, int length, byte value) {
+	checkMemoryRange(paddr, length);
+
+	invalidateDecodeCache(paddr, length);
+
+	mainMemory.fill(paddr, length, value);
+    }
+
+    private void checkMemoryRange(int paddr, int length) {
+	Lib.assertTrue(length >= 0 && paddr >= 0 &&
+		       paddr <= mainMemory.size() - length);
     }
 
     /**
@@ -286,6 +516,12 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * In TLB mode, the TLB entry that matched each recently used virtual page
+     * is remembered in <tt>tlbCache</tt>, so that most translations avoid
+     * searching the TLB. The used and dirty bits, and the exceptions raised,
+     * are exactly the same as for a full translation.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
@@ -294,7 +530,47 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (!debugMemory && (vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    TranslationEntry entry;
+
+	    if (!usingTLB) {
+		entry = (translations != null && vpn < translations.length) ?
+		    translations[vpn] : null;
+	    }
+	    else {
+		entry = tlbCache[vpn & (tlbCacheSize-1)];
+		if (entry != null && entry.vpn != vpn)
+		    entry = null;
+	    }
+
+	    if (entry != null && entry.valid && !(entry.readOnly && writing) &&
+		entry.ppn >= 0 && entry.ppn < numPhysPages) {
+		entry.used = true;
+		if (writing)
+		    entry.dirty = true;
+
+		return entry.ppn*pageSize + offsetFromAddress(vaddr);
+	    }
+	}
+
+	return translateFully(vaddr, size, writing);
+    }
+
+    /**
+     * Translate a virtual address without using <tt>tlbCache</tt>, and
+     * remember the TLB entry used, if any. Used by <tt>translate()</tt>
+     * whenever the fast path does not apply.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateFully(int vaddr, int size, boolean writing)
+	throws MipsException {
+	if (debugMemory)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -335,6 +611,8 @@ public final class Processor {
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+
+	    tlbCache[vpn & (tlbCacheSize-1)] = entry;
 	}
 
 	// check if trying to write a read-only page
@@ -357,7 +635,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (debugMemory)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,16 +650,15 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugMemory)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = mainMemory.readInt(translate(vaddr, size, false), size);
 
-	if (Lib.test(dbgProcessor))
+	if (debugMemory)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +676,227 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugMemory)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+
+	invalidateDecodeCache(paddr / pageSize);
+
+	mainMemory.writeInt(paddr, size, value);
+    }
+
+    /**
+     * Return the decoded form of the instruction at physical address
+     * <i>paddr</i>, decoding it and caching the result if this is the first
+     * time it has been fetched since its page was last written.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction fetchDecoded(int paddr) {
+	DecodedPage page = getDecodedPage(paddr / pageSize);
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction decoded = page.instructions[index];
+	if (decoded == null) {
+	    decoded = new DecodedInstruction(mainMemory.readInt(paddr, 4));
+	    page.instructions[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Return the basic block starting at physical address <i>paddr</i>,
+     * discovering it and caching the result if necessary. The block extends
+     * up to and including the first branch, jump, syscall, or illegal
+     * instruction, or to the end of the page, whichever comes first.
+     *
+     * @param	paddr	the word-aligned physical address of the first
+     *			instruction in the block.
+     * @return	the basic block.
+     */
+    private BasicBlock fetchBlock(int paddr) {
+	DecodedPage page = getDecodedPage(paddr / pageSize);
+	int index = (paddr % pageSize) / 4;
+
+	if (page.blocks == null)
+	    page.blocks = new BasicBlock[pageSize/4];
+	
+	BasicBlock block = page.blocks[index];
+	if (block != null)
+	    return block;
+
+	int length = 0;
+	while (index+length < pageSize/4) {
+	    DecodedInstruction decoded = fetchDecoded(paddr + length*4);
+	    length++;
+	    
+	    if (decoded.endsBlock)
+		break;
+	}
+
+	block = new BasicBlock(length);
+	for (int i=0; i<length; i++)
+	    block.instructions[i] = page.instructions[index+i];
+
+	page.blocks[index] = block;
+	return block;
+    }
+
+    /**
+     * Compile a basic block into a sequence of operations, each specialized
+     * for one instruction so that the JVM can inline its register accesses.
+     * Instructions with no specialized operation (syscalls, unaligned
+     * loads and stores, division, and illegal instructions) are compiled
+     * into an operation that runs the interpreter.
+     *
+     * <p>
+     * Compiled operations have the same effect as the interpreter, including
+     * delayed loads and the state left behind by a user exception, so the
+     * block can still be abandoned at any instruction.
+     *
+     * <p>
+     * Blocks are not compiled into JVM bytecode, because Nachos has no
+     * bytecode library to generate classes with.
+     *
+     * @param	block	the block to compile.
+     * @param	inst	the instruction state to interpret with.
+     * @return	the compiled operations, one per instruction in the block.
+     */
+    private CompiledOp[] compileBlock(BasicBlock block, Instruction inst) {
+	CompiledOp[] compiled = new CompiledOp[block.instructions.length];
+
+	for (int i=0; i<compiled.length; i++) {
+	    DecodedInstruction d = block.instructions[i];
+	    
+	    switch (d.operation) {
+	    case Mips.ADD:
+		compiled[i] = new AddOp(d);
+		break;
+	    case Mips.SUB:
+		compiled[i] = new SubOp(d);
+		break;
+	    case Mips.SLT:
+		compiled[i] = new SltOp(d);
+		break;
+	    case Mips.AND:
+	    case Mips.OR:
+	    case Mips.NOR:
+	    case Mips.XOR:
+		compiled[i] = new LogicalOp(d);
+		break;
+	    case Mips.LUI:
+		compiled[i] = new LuiOp(d);
+		break;
+	    case Mips.SLL:
+	    case Mips.SRA:
+	    case Mips.SRL:
+		compiled[i] = new ShiftOp(d);
+		break;
+	    case Mips.MULT:
+		compiled[i] = new MultOp(d);
+		break;
+	    case Mips.MFLO:
+	    case Mips.MFHI:
+	    case Mips.MTLO:
+	    case Mips.MTHI:
+		compiled[i] = new MoveOp(d);
+		break;
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		compiled[i] = new BranchOp(d);
+		break;
+	    case Mips.JUMP:
+		compiled[i] = new JumpOp(d);
+		break;
+	    case Mips.LOAD:
+		compiled[i] = new LoadOp(d);
+		break;
+	    case Mips.STORE:
+		compiled[i] = new StoreOp(d);
+		break;
+	    default:
+		compiled[i] = new InterpretedOp(d, inst);
+		break;
+	    }
+	}
+
+	return compiled;
+    }
+
+    /**
+     * Return the decode cache entry for the specified physical page, creating
+     * an empty one if necessary.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the decode cache entry.
+     */
+    private DecodedPage getDecodedPage(int ppn) {
+	DecodedPage page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedPage();
+	    decodeCache[ppn] = page;
+	    decodeCacheEmpty = false;
+	}
+
+	return page;
+    }
+
+    /**
+     * Discard the pre-decoded instructions of the specified physical page.
+     * Called whenever the page may have been modified.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private void invalidateDecodeCache(int ppn) {
+	decodeCache[ppn] = null;
+    }
+
+    /**
+     * Discard the pre-decoded instructions of every physical page that
+     * overlaps the specified range.
+     *
+     * @param	paddr	the first physical address in the range.
+     * @param	length	the number of bytes in the range.
+     */
+    private void invalidateDecodeCache(int paddr, int length) {
+	if (decodeCacheEmpty || length == 0)
+	    return;
+
+	for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+	    decodeCache[ppn] = null;
+    }
+
+    /**
+     * Discard all pre-decoded instructions.
+     */
+    private void flushDecodeCache() {
+	if (decodeCacheEmpty)
+	    return;
+
+	for (int i=0; i<numPhysPages; i++)
+	    decodeCache[i] = null;
+
+	decodeCacheEmpty = true;
+    }
+
+    /**
+     * Forget the cached TLB entry for the specified virtual page, if any.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void invalidateTLBCache(int vpn) {
+	tlbCache[vpn & (tlbCacheSize-1)] = null;
     }
 
     /**
@@ -546,6 +1035,15 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * In TLB mode, a direct-mapped cache of TLB entries indexed by the low
+     * bits of the virtual page number. A cached entry is always the entry
+     * a search of the TLB would find for its vpn; any cached entry that
+     * <tt>writeTLBEntry()</tt> could make stale is discarded.
+     */
+    private TranslationEntry[] tlbCache;
+    /** Number of entries in <tt>tlbCache</tt>. Must be a power of 2. */
+    private static final int tlbCacheSize = 64;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -554,7 +1052,28 @@ public final class Processor {
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
-    private byte[] mainMemory;
+    private PhysicalMemory mainMemory;
+    /**
+     * Pre-decoded instructions and basic blocks, indexed by physical page
+     * number. A page's entry is <tt>null</tt> until an instruction is fetched
+     * from it, and is reset to <tt>null</tt> whenever the page is written.
+     */
+    private DecodedPage[] decodeCache;
+    /** <tt>true</tt> if no page has any pre-decoded instructions. */
+    private boolean decodeCacheEmpty = true;
+    /** <tt>true</tt> if memory accesses are being traced. */
+    private boolean debugMemory;
+    /** Number of instructions executed so far in the current batch. */
+    private int executed;
+    /** The most instructions to execute in one batch. */
+    private static final int maxBatchSize = 0x10000;
+    /** <tt>true</tt> if executing a basic block at a time. */
+    private boolean useBasicBlocks;
+    /**
+     * The number of times a basic block must run before it is compiled, or
+     * 0 to never compile basic blocks.
+     */
+    private int compileThreshold;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -616,6 +1135,17 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched and decoded.
+	 * The instruction must be the one at the current PC.
+	 */
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    load(decoded);
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1156,45 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    load(fetchDecoded(translate(registers[regPC], 4, false)));
+	}
+
+	private void load(DecodedInstruction decoded) {
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+	    branchOffset = decoded.branchOffset;
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
-
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1549,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int value, op, rs, rt, rd, sh, func, target, imm, branchOffset;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1560,461 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the contents of any register. Computed once per static
+     * instruction and kept in the decode cache.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    endsBlock = (Lib.test(Mips.BRANCH, flags) ||
+			 operation == Mips.SYSCALL ||
+			 operation == Mips.UNIMPL ||
+			 operation == Mips.INVALID);
+
+	    // branch targets always use the signed immediate
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+	final int imm, branchOffset;
+	/** <tt>true</tt> if this instruction is the last in a basic block. */
+	final boolean endsBlock;
+    }
+
+    /**
+     * The decode cache entry for one physical page.
+     */
+    private static class DecodedPage {
+	/** The decoded instructions, indexed by word offset in the page. */
+	DecodedInstruction[] instructions =
+	    new DecodedInstruction[pageSize/4];
+	/**
+	 * The basic blocks discovered so far, indexed by the word offset of
+	 * their first instruction. Allocated on first use.
+	 */
+	BasicBlock[] blocks = null;
+    }
+
+    /**
+     * A basic block, along with its compiled form once it has run often
+     * enough.
+     */
+    private static class BasicBlock {
+	BasicBlock(int length) {
+	    instructions = new DecodedInstruction[length];
+	}
+	
+	/** The decoded instructions in this block. */
+	final DecodedInstruction[] instructions;
+	/** The number of times this block has been run by the interpreter. */
+	int executions = 0;
+	/** The compiled operations, or <tt>null</tt> if not compiled yet. */
+	CompiledOp[] compiled = null;
+    }
+
+    /**
+     * A single instruction compiled by <tt>compileBlock()</tt>. Running it
+     * has the same effect as <tt>Instruction.run()</tt> on the same
+     * instruction.
+     */
+    private abstract class CompiledOp {
+	CompiledOp(DecodedInstruction d) {
+	    operation = d.operation;
+	    rs = d.rs;
+	    rt = d.rt;
+	    sh = d.sh;
+	    imm = d.imm;
+	    dstReg = d.dstReg;
+	    srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	}
+
+	abstract void run() throws MipsException;
+
+	/**
+	 * Complete an instruction that writes <i>dst</i> to its destination
+	 * register, and move on to the next instruction.
+	 */
+	final void finish(int dst) {
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/**
+	 * Complete an instruction that has no destination register, and move
+	 * on to the next instruction.
+	 */
+	final void finish() {
+	    finishLoad();
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	/** The same overflow test as <tt>Instruction.writeBack()</tt>. */
+	final boolean overflowed(long dst) {
+	    return Lib.test(dst,31) != Lib.test(dst,32);
+	}
+
+	/** The second source operand of an R- or I-format instruction. */
+	final int src2() {
+	    return srcImm ? imm : registers[rt];
+	}
+
+	final int operation, rs, rt, sh, imm, dstReg;
+	final boolean srcImm, unsigned;
+    }
+
+    private class AddOp extends CompiledOp {
+	AddOp(DecodedInstruction d) {
+	    super(d);
+	    overflow = Lib.test(Mips.OVERFLOW, d.flags);
+	}
+
+	void run() throws MipsException {
+	    long dst = (long) registers[rs] + src2();
+	    
+	    if (overflow && overflowed(dst))
+		throw new MipsException(exceptionOverflow);
+	    
+	    finish((int) dst);
+	}
+
+	final boolean overflow;
+    }
+
+    private class SubOp extends CompiledOp {
+	SubOp(DecodedInstruction d) {
+	    super(d);
+	    overflow = Lib.test(Mips.OVERFLOW, d.flags);
+	}
+
+	void run() throws MipsException {
+	    long dst = (long) registers[rs] - registers[rt];
+
+	    if (overflow && overflowed(dst))
+		throw new MipsException(exceptionOverflow);
+	    
+	    finish((int) dst);
+	}
+
+	final boolean overflow;
+    }
+
+    private class SltOp extends CompiledOp {
+	SltOp(DecodedInstruction d) {
+	    super(d);
+	}
+
+	void run() {
+	    int src1 = registers[rs], src2 = src2();
+	    boolean less;
+	    
+	    if (unsigned)
+		less = (src1 & 0xFFFFFFFFL) < (src2 & 0xFFFFFFFFL);
+	    else
+		less = src1 < src2;
+
+	    finish(less ? 1 : 0);
+	}
+    }
+
+    private class LogicalOp extends CompiledOp {
+	LogicalOp(DecodedInstruction d) {
+	    super(d);
+	}
+
+	void run() {
+	    int src1 = registers[rs], src2 = src2();
+
+	    switch (operation) {
+	    case Mips.AND:
+		finish(src1 & src2);
+		break;
+	    case Mips.OR:
+		finish(src1 | src2);
+		break;
+	    case Mips.NOR:
+		finish(~(src1 | src2));
+		break;
+	    default:
+		finish(src1 ^ src2);
+		break;
+	    }
+	}
+    }
+
+    private class LuiOp extends CompiledOp {
+	LuiOp(DecodedInstruction d) {
+	    super(d);
+	}
+
+	void run() {
+	    finish(imm << 16);
+	}
+    }
+
+    private class ShiftOp extends CompiledOp {
+	ShiftOp(DecodedInstruction d) {
+	    super(d);
+	    shiftBySh = Lib.test(Mips.SRC1SH, d.flags);
+	}
+
+	void run() {
+	    int amount = (shiftBySh ? sh : registers[rs]) & 0x1F;
+	    long src2 = registers[rt];
+
+	    // same (sign-extended) 64-bit arithmetic as the interpreter
+	    switch (operation) {
+	    case Mips.SLL:
+		finish((int) (src2 << amount));
+		break;
+	    case Mips.SRA:
+		finish((int) (src2 >> amount));
+		break;
+	    default:
+		finish((int) (src2 >>> amount));
+		break;
+	    }
+	}
+
+	final boolean shiftBySh;
+    }
+
+    private class MultOp extends CompiledOp {
+	MultOp(DecodedInstruction d) {
+	    super(d);
+	}
+
+	void run() {
+	    long src1 = registers[rs], src2 = registers[rt];
+	    
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst = src1 * src2;
+	    registers[regLo] = (int) dst;
+	    registers[regHi] = (int) (dst >>> 32);
+	    
+	    finish();
+	}
+    }
+
+    private class MoveOp extends CompiledOp {
+	MoveOp(DecodedInstruction d) {
+	    super(d);
+	}
+
+	void run() {
+	    switch (operation) {
+	    case Mips.MFLO:
+		finish(registers[regLo]);
+		break;
+	    case Mips.MFHI:
+		finish(registers[regHi]);
+		break;
+	    case Mips.MTLO:
+		registers[regLo] = registers[rs];
+		finish();
+		break;
+	    default:
+		registers[regHi] = registers[rs];
+		finish();
+		break;
+	    }
+	}
+    }
+
+    private class BranchOp extends CompiledOp {
+	BranchOp(DecodedInstruction d) {
+	    super(d);
+	    branchOffset = d.branchOffset;
+	    link = Lib.test(Mips.LINK, d.flags);
+	}
+
+	void run() {
+	    int src1 = registers[rs], src2 = registers[rt];
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != src2);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;		
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;		
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;		
+	    default:
+		branch = (src1 < 0);
+		break;
+	    }
+
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget = registers[regNextPC] + branchOffset;
+	    
+	    finishLoad();
+
+	    if (link)
+		registers[dstReg] = nextPC;
+
+	    advancePC(branch ? jtarget : nextPC);
+	}
+
+	final int branchOffset;
+	final boolean link;
+    }
+
+    private class JumpOp extends CompiledOp {
+	JumpOp(DecodedInstruction d) {
+	    super(d);
+	    format = d.format;
+	    target = d.target;
+	    link = Lib.test(Mips.LINK, d.flags);
+	}
+
+	void run() {
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget;
+
+	    if (format == Mips.RFMT)
+		jtarget = registers[rs];
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+	    
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = nextPC;
+
+	    advancePC(jtarget);
+	}
+
+	final int format, target;
+	final boolean link;
+    }
+
+    private class LoadOp extends CompiledOp {
+	LoadOp(DecodedInstruction d) {
+	    super(d);
+	    size = d.size;
+	}
+
+	void run() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+	    
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    advancePC(registers[regNextPC]+4);
+	}
+
+	final int size;
+    }
+
+    private class StoreOp extends CompiledOp {
+	StoreOp(DecodedInstruction d) {
+	    super(d);
+	    size = d.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+	    finish();
+	}
+
+	final int size;
+    }
+
+    /**
+     * An instruction with no specialized operation, run by the interpreter.
+     */
+    private class InterpretedOp extends CompiledOp {
+	InterpretedOp(DecodedInstruction d, Instruction inst) {
+	    super(d);
+	    this.decoded = d;
+	    this.inst = inst;
+	}
+
+	void run() throws MipsException {
+	    inst.run(decoded);
+	}
+
+	final DecodedInstruction decoded;
+	final Instruction inst;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -29,6 +29,9 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numRealTimeJobs > 0)
+	    System.out.println("Real-time: jobs " + numRealTimeJobs
+			       + ", deadline misses " + numDeadlineMisses);
     }
 
     /**
@@ -62,6 +65,10 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of real-time jobs the kernel has completed. */
+    public int numRealTimeJobs = 0;
+    /** The number of those jobs that completed after their deadline. */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,12 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +19,18 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If the <tt>TCB.virtualThreads</tt> configuration key is set, and the JVM
+ * supports virtual threads, the JVM threads are virtual threads, and up to
+ * <tt>maxVirtualThreads</tt> TCBs can exist at once. Otherwise each TCB uses
+ * a platform thread, and up to <tt>maxThreads</tt> can exist.
+ *
+ * <p>
+ * JVM threads are not discarded when their TCB is destroyed. Up to
+ * <tt>maxPooledThreads</tt> of them wait in a pool to run the next TCB to be
+ * started, so forking and finishing threads does not keep creating and
+ * destroying JVM threads.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +57,46 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> and
+     * <tt>Thread.Builder.unstarted()</tt>, if this JVM has them. Found by
+     * reflection so that Nachos still runs on JVMs without virtual threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Method ofVirtual = Thread.class.getMethod("ofVirtual");
+	    Class<?> clsBuilder = Class.forName("java.lang.Thread$Builder");
+	    
+	    virtualThreadBuilder = ofVirtual.invoke(null);
+	    unstartedThread = clsBuilder.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    virtualThreadBuilder = null;
+	    unstartedThread = null;
+	}
+    }
+
+    /**
+     * Create a JVM thread to run the specified target, using a virtual thread
+     * if enabled.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedThread.invoke(virtualThreadBuilder,
+						       target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
     }
     
     /**
@@ -66,7 +123,9 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (virtualThreadBuilder != null ?
+			maxVirtualThreads : maxThreads));
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +145,29 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We reuse a pooled carrier thread if there is one. Otherwise we
+	     * make a new one, which is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    Carrier carrier = idleCarriers.pollFirst();
+	    if (carrier != null)
+		numIdleCarriers.decrementAndGet();
+	    else
+		carrier = (Carrier) privilege.doPrivileged(new PrivilegedAction() {
+			public Object run() { return new Carrier(); }
+		    });
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    javaThread = carrier.thread;
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
+	    /* The Java thread isn't yet running this TCB, but we need to get
+	     * it blocking in yield(). We do this by temporarily turning off the
+	     * current TCB, handing this TCB to the carrier, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
 	    
-	    this.javaThread.start();
+	    carrier.run(this);
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -244,7 +306,7 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
 	}
@@ -252,7 +314,7 @@ public final class TCB {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -280,30 +342,78 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
      */
-    private synchronized void waitForInterrupt() {
-    	int i=0;
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
+     * and unparking its Java thread. Used in the ping-pong process of
      * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * TCB. If the thread has not parked yet, the next
+     * <tt>waitForInterrupt()</tt> sees the flag and does not park at all.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
+    }
+
+    /**
+     * A Java thread that runs TCBs, one after another. After the TCB it is
+     * running is destroyed, a carrier goes back to the pool of idle carriers
+     * and parks until <tt>start()</tt> hands it another TCB, unless the pool
+     * is full, in which case its Java thread exits.
+     */
+    private static class Carrier implements Runnable {
+	Carrier() {
+	    thread = newJavaThread(this);
+	}
+
+	/**
+	 * Run the specified TCB in this carrier's thread, starting the thread
+	 * if necessary.
+	 */
+	void run(TCB tcb) {
+	    this.tcb = tcb;
+
+	    if (!started) {
+		started = true;
+		thread.start();
+	    }
+	    else {
+		LockSupport.unpark(thread);
+	    }
+	}
+
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+		tcb = null;
+
+		if (numIdleCarriers.incrementAndGet() > maxPooledThreads) {
+		    numIdleCarriers.decrementAndGet();
+		    return;
+		}
+		idleCarriers.offerFirst(this);
+		
+		while (tcb == null)
+		    LockSupport.park(this);
+	    }
+	}
+
+	final Thread thread;
+	/** Only accessed by the thread that starts this carrier. */
+	private boolean started = false;
+	/** The TCB to run next, or <tt>null</tt> while idle. */
+	private volatile TCB tcb = null;
     }
 
     private void associateThread(KThread thread) {
@@ -331,7 +441,26 @@ public final class TCB {
      * The maximum number of started, non-destroyed TCB's that can be in
      * existence.
      */
-    public static final int maxThreads = 250;
+    public static final int maxThreads = 10000;
+
+    /**
+     * The maximum number of idle Java threads kept for reuse by later TCBs.
+     */
+    public static final int maxPooledThreads = 256;
+
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when using virtual threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /**
+     * The virtual thread builder returned by <tt>Thread.ofVirtual()</tt>, or
+     * <tt>null</tt> if not using virtual threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** The <tt>Thread.Builder.unstarted(Runnable)</tt> method. */
+    private static Method unstartedThread = null;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -349,8 +478,8 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
@@ -358,9 +487,19 @@ public final class TCB {
      * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty.
+     *
+     * <p>
+     * The set is concurrent because a destroyed TCB's Java thread removes it
+     * after waking the TCB that destroyed it.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads = ConcurrentHashMap.newKeySet();
+
+    /** Carriers whose Java threads are parked, waiting for a TCB to run. */
+    private static ConcurrentLinkedDeque<Carrier> idleCarriers =
+	new ConcurrentLinkedDeque<Carrier>();
+    /** The number of carriers in, or about to be in, <tt>idleCarriers</tt>. */
+    private static AtomicInteger numIdleCarriers = new AtomicInteger(0);
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -388,8 +527,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * Volatile, so that everything a TCB did before waking another TCB is
+     * visible to the TCB it wakes.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,7 +544,6 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If the <tt>Timer.tickless</tt> configuration key is <tt>true</tt>, the
+ * timer does not interrupt periodically. Instead, the kernel programs each
+ * interrupt with <tt>setNextInterrupt()</tt>, and the timer interrupts once,
+ * at that time.
  */
 public final class Timer {
     /**
@@ -37,7 +43,41 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Return whether this timer is tickless, only interrupting when
+     * programmed to with <tt>setNextInterrupt()</tt>.
+     *
+     * @return	<tt>true</tt> if this timer is tickless.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Program the next interrupt of a tickless timer, replacing any interrupt
+     * programmed before. If the time has already passed, the timer interrupts
+     * on the next tick.
+     *
+     * <p>
+     * A new interrupt is only scheduled if the time moves earlier than every
+     * interrupt already scheduled. If it moves later, the interrupt already
+     * scheduled is left alone, and when it happens the timer schedules
+     * another one for the new time instead of calling the handler.
+     *
+     * @param	time	the time of the next timer interrupt, or -1 for no
+     *			interrupt.
+     */
+    public void setNextInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	nextInterrupt = time;
+	arm();
     }
 
     /**
@@ -59,8 +99,38 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Record that a real-time job has completed, counting it in the
+     * statistics.
+     *
+     * @param	deadline	the time by which the job had to complete.
+     * @return	<tt>true</tt> if the job missed its deadline.
+     */
+    public boolean completeJob(long deadline) {
+	boolean missed = getTime() > deadline;
+
+	privilege.stats.numRealTimeJobs++;
+	if (missed)
+	    privilege.stats.numDeadlineMisses++;
+
+	return missed;
+    }
+
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    // scheduled interrupts happen in order, so this is the earliest
+	    numScheduled--;
+
+	    if (nextInterrupt < 0 || getTime() < nextInterrupt) {
+		arm();
+		return;
+	    }
+
+	    nextInterrupt = -1;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -76,10 +146,44 @@ public final class Timer {
 	privilege.interrupt.schedule(delay, "timer", timerInterrupt);
     }
 
+    /**
+     * Make sure a tickless timer has an interrupt scheduled no later than
+     * <tt>nextInterrupt</tt>, scheduling one only if none is.
+     */
+    private void arm() {
+	if (nextInterrupt < 0)
+	    return;
+
+	long time = Math.max(nextInterrupt, getTime()+1);
+	if (numScheduled > 0 && scheduled[numScheduled-1] <= time)
+	    return;
+
+	if (numScheduled == scheduled.length) {
+	    long[] grown = new long[scheduled.length*2];
+	    System.arraycopy(scheduled, 0, grown, 0, numScheduled);
+	    scheduled = grown;
+	}
+	scheduled[numScheduled++] = time;
+
+	privilege.interrupt.schedule(time - getTime(), "timer",
+				     timerInterrupt);
+    }
+
     private void scheduleAutoGraderInterrupt() {
 	privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
     }
 
+    private boolean tickless;
+    /** The time of the programmed interrupt of a tickless timer, or -1. */
+    private long nextInterrupt = -1;
+    /**
+     * The times of the interrupts a tickless timer has scheduled and that
+     * have not happened yet. Each is earlier than the ones before it, so the
+     * last is the next to happen.
+     */
+    private long[] scheduled = new long[4];
+    private int numScheduled = 0;
+
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
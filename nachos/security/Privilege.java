@@ -158,6 +158,25 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time as if the specified number of MIPS user
+	 * instructions had each been followed by a call to
+	 * <tt>tick(false)</tt>. The caller must ensure no interrupt becomes
+	 * due before the last of these instructions.
+	 *
+	 * @param	numInstructions	the number of user instructions
+	 *				executed.
+	 */
+	public void tickUser(int numInstructions);
+
+	/**
+	 * Return the number of ticks until the next pending interrupt is due,
+	 * or <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 *
+	 * @return	the time until the next interrupt.
+	 */
+	public long getTimeUntilDue();
     }
 
     /**
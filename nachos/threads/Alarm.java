@@ -1,6 +1,5 @@
 package nachos.threads;
 
-import java.util.LinkedList;
 import nachos.machine.*;
 import nachos.security.*;
 import nachos.threads.KThread;
@@ -8,6 +7,19 @@ import nachos.threads.KThread;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are blocked, not on the ready queue. They are kept in a
+ * binary heap ordered by wake time, and then by the order in which they went
+ * to sleep, so each timer interrupt wakes the <i>k</i> threads that are due in
+ * time O(<i>k</i> log <i>n</i>), without allocating memory.
+ *
+ * <p>
+ * If the timer is tickless (see <tt>Timer.tickless</tt>), the alarm programs
+ * each timer interrupt itself: for the earliest sleeping thread, and, only
+ * while some thread other than the current one is ready to run, for the end
+ * of the current thread's time slice of <tt>Stats.TimerTicks</tt>. A thread
+ * running alone with no sleepers therefore gets no timer interrupts at all.
  */
 public class Alarm {
     /**
@@ -17,12 +29,12 @@ public class Alarm {
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-	/*timer list, saving expireTime for each thread.
-	LinkedList<ThreadTimes> timerList = new LinkedList<ThreadTimes>();*/
     public Alarm() {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+
+	tickless = Machine.timer().isTickless();
     }
 
     /**
@@ -33,28 +45,14 @@ public class Alarm {
      */
     public void timerInterrupt() {
     	System.out.println("***timerInterrupt***");
-    	/*KThread.currentThread.subTimeSlice();
-    	
-    	System.out.println("time slice:"+Machine.timer().getTime()+" ["+
-    				KThread.currentThread.getName()+"] "+KThread.currentThread.getTimeSlice()) ;
-    	//looping through timerList, checking to see if any threads need to be waken up
-    	int i;
-    	for (i = timerList.size() -1 ; i >= 0 ; i--)
-    	{
-    		//look through the timer list
-    		//let specific thread run before being expired.
-    		if (Machine.timer().getTime() >= timerList.get(i).getExpireTime())
-    		{
-    			timerList.get(i).getThreadName().ready();
-    			//System.out.println("!!Get "+timerList.get(i).toString());
-    			timerList.remove(i);
-    		}
-    	}*/
+
+	// wake every sleeping thread that is due
+	long time = Machine.timer().getTime();
+	while (numSleepers > 0 && wakeTimes[0] <= time)
+	    removeFirst().ready();
+
     	KThread.newSelfTest();
     	KThread.yield();
-
-    		
-	
     }
 
     /**
@@ -72,9 +70,173 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
-	while (wakeTime > Machine.timer().getTime())
-	    KThread.yield();
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	add(Machine.timer().getTime() + x, KThread.currentThread());
+	reprogram();
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Called when a thread other than the current thread becomes ready. If
+     * the timer is tickless and the current thread's time slice has not
+     * started, start it now.
+     */
+    void threadReady() {
+	if (!tickless)
+	    return;
+
+	long time = Machine.timer().getTime();
+	if (preemptTime <= time)
+	    preemptTime = time + Stats.TimerTicks;
+
+	reprogram();
+    }
+
+    /**
+     * Called when a thread is dispatched. If the timer is tickless, start
+     * the dispatched thread's time slice.
+     */
+    void threadDispatched() {
+	if (!tickless)
+	    return;
+
+	preemptTime = Machine.timer().getTime() + Stats.TimerTicks;
+	reprogram();
+    }
+
+    /**
+     * Program a tickless timer for the earliest sleeping thread, or for the
+     * end of the current time slice if another thread is ready to run.
+     */
+    private void reprogram() {
+	if (!tickless)
+	    return;
+
+	long next = -1;
+	if (numSleepers > 0)
+	    next = wakeTimes[0];
+	if (KThread.numReadyThreads() > 0 && (next < 0 || preemptTime < next))
+	    next = preemptTime;
+
+	Machine.timer().setNextInterrupt(next);
+    }
+
+    /**
+     * Add a sleeping thread to the heap.
+     */
+    private void add(long wakeTime, KThread thread) {
+	if (numSleepers == sleepers.length) {
+	    int length = sleepers.length*2;
+	    long[] grownTimes = new long[length];
+	    long[] grownOrder = new long[length];
+	    KThread[] grownSleepers = new KThread[length];
+	    System.arraycopy(wakeTimes, 0, grownTimes, 0, numSleepers);
+	    System.arraycopy(sleepOrder, 0, grownOrder, 0, numSleepers);
+	    System.arraycopy(sleepers, 0, grownSleepers, 0, numSleepers);
+	    wakeTimes = grownTimes;
+	    sleepOrder = grownOrder;
+	    sleepers = grownSleepers;
+	}
+
+	long order = numSleeps++;
+
+	// sift up
+	int index = numSleepers++;
+	while (index > 0) {
+	    int parent = (index-1)/2;
+	    if (!before(wakeTime, order, parent))
+		break;
+
+	    move(parent, index);
+	    index = parent;
+	}
+
+	set(index, wakeTime, order, thread);
+    }
+
+    /**
+     * Remove the sleeping thread that is due first from the heap.
+     */
+    private KThread removeFirst() {
+	KThread first = sleepers[0];
+
+	int last = --numSleepers;
+	long wakeTime = wakeTimes[last];
+	long order = sleepOrder[last];
+	KThread thread = sleepers[last];
+	sleepers[last] = null;
+
+	if (last > 0) {
+	    // sift down
+	    int index = 0;
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= last)
+		    break;
+
+		if (child+1 < last && before(wakeTimes[child+1],
+					     sleepOrder[child+1], child))
+		    child++;
+
+		if (!before(wakeTimes[child], sleepOrder[child], wakeTime,
+			    order))
+		    break;
+
+		move(child, index);
+		index = child;
+	    }
+
+	    set(index, wakeTime, order, thread);
+	}
+
+	return first;
+    }
+
+    /**
+     * Return <tt>true</tt> if a thread with the specified wake time and
+     * sleep order should wake before the thread at <i>index</i>.
+     */
+    private boolean before(long wakeTime, long order, int index) {
+	return before(wakeTime, order, wakeTimes[index], sleepOrder[index]);
+    }
+
+    private static boolean before(long wakeTime1, long order1,
+				  long wakeTime2, long order2) {
+	if (wakeTime1 != wakeTime2)
+	    return wakeTime1 < wakeTime2;
+
+	return order1 < order2;
+    }
+
+    private void move(int from, int to) {
+	set(to, wakeTimes[from], sleepOrder[from], sleepers[from]);
     }
+
+    private void set(int index, long wakeTime, long order, KThread thread) {
+	wakeTimes[index] = wakeTime;
+	sleepOrder[index] = order;
+	sleepers[index] = thread;
+    }
+
+    /** <tt>true</tt> if this alarm programs a tickless timer. */
+    private boolean tickless;
+    /** When the current thread's time slice ends, if the timer is tickless. */
+    private long preemptTime = 0;
+
+    /** The wake time of each sleeping thread, as a heap. */
+    private long[] wakeTimes = new long[8];
+    /** When each sleeping thread went to sleep, to order equal wake times. */
+    private long[] sleepOrder = new long[8];
+    /** The sleeping threads, in the same order as <tt>wakeTimes</tt>. */
+    private KThread[] sleepers = new KThread[8];
+    /** The number of sleeping threads. */
+    private int numSleepers = 0;
+    /** The number of times a thread has gone to sleep. */
+    private long numSleeps = 0;
 }
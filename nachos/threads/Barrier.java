@@ -0,0 +1,71 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> makes a fixed number of threads, the <i>parties</i>,
+ * wait for each other. Each party calls <tt>await()</tt>, which does not
+ * return until every party has called it. The barrier is then reset, and can
+ * be used again by the same threads for their next phase.
+ *
+ * <p>
+ * The waiting threads are kept in a queue from the scheduler, and are made
+ * ready in the order the scheduler would dequeue them. Waiting threads do
+ * not donate priority, since there is no single thread they wait for.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them continues. Must be positive.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+    }
+
+    /**
+     * Wait until every party has called <tt>await()</tt>.
+     *
+     * @return	<tt>true</tt> if the current thread was the last to arrive,
+     *		and so did not wait.
+     */
+    public boolean await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean last = (++numArrived == parties);
+	if (last) {
+	    for (int i=1; i<parties; i++)
+		waitQueue.nextThread().ready();
+
+	    numArrived = 0;
+	}
+	else {
+	    if (waitQueue == null)
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return last;
+    }
+
+    /**
+     * Return the number of threads that must call <tt>await()</tt>.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    private int parties;
+    /** The number of parties that have arrived in the current phase. */
+    private int numArrived = 0;
+    /** The waiting parties, allocated when one first waits. */
+    private ThreadQueue waitQueue = null;
+}
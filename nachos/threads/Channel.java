@@ -0,0 +1,270 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries a stream of 32-bit words from speaking threads to
+ * listening threads, many words at a time. It is the bulk counterpart of a
+ * <tt>Communicator</tt>, which pairs one speaker with one listener for every
+ * word.
+ *
+ * <p>
+ * A channel has a buffer of a fixed number of words, which may be zero. A
+ * speaker returns once all of its words have been buffered or received; with
+ * no buffer, it returns only once listeners have received all of them. A
+ * listener waits until at least one word is available, and then receives as
+ * many as are available and fit, in the order they were spoken.
+ *
+ * <p>
+ * Words are copied directly from a waiting speaker to a listener, or from a
+ * speaker to a waiting listener, without passing through the buffer, so one
+ * context switch can move as many words as the listener asked for. Wake-ups
+ * are coalesced: a waiting listener is woken once, when its first words
+ * arrive, and keeps receiving words until it runs; a waiting speaker is only
+ * woken once all of its words have been taken, or once the buffer has room
+ * for its remaining words or for half the buffer.
+ *
+ * <p>
+ * Speakers take turns in the order they arrive, and each speaker's words are
+ * kept together in the stream. Listeners also take turns in the order they
+ * arrive.
+ */
+public class Channel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer. If
+     *				0, speakers wait for listeners to receive
+     *				their words.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	buffer = new int[capacity];
+	lock = new Lock();
+	speakTurn = new Condition(lock);
+	listenTurn = new Condition(lock);
+	room = new Condition(lock);
+	data = new Condition(lock);
+    }
+
+    /**
+     * Transfer the specified words to listeners. Does not return until every
+     * word has been buffered or received by a listener.
+     *
+     * @param	words	the array holding the words to transfer.
+     * @param	offset	the index of the first word to transfer.
+     * @param	length	the number of words to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= words.length);
+
+	lock.acquire();
+
+	// the previous speaker hands its turn over directly
+	if (speaking) {
+	    numWaitingSpeakers++;
+	    speakTurn.sleep();
+	}
+	else {
+	    speaking = true;
+	}
+
+	int amount = put(words, offset, length);
+	if (amount < length) {
+	    // let listeners take the rest directly
+	    speakWords = words;
+	    speakOffset = offset + amount;
+	    speakLength = length - amount;
+
+	    while (speakLength > 0) {
+		room.sleep();
+
+		amount = put(speakWords, speakOffset, speakLength);
+		speakOffset += amount;
+		speakLength -= amount;
+	    }
+
+	    speakWords = null;
+	}
+
+	if (numWaitingSpeakers > 0) {
+	    numWaitingSpeakers--;
+	    speakTurn.wake();
+	}
+	else {
+	    speaking = false;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Transfer all the words in the specified array to listeners.
+     *
+     * @param	words	the words to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Wait for at least one word to be spoken, and then receive as many
+     * words as are available, up to <i>length</i>.
+     *
+     * @param	buf	the array in which to store the words.
+     * @param	offset	the index at which to store the first word.
+     * @param	length	the most words to receive. Must be positive.
+     * @return	the number of words received.
+     */
+    public int listen(int[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 &&
+		       offset+length <= buf.length);
+
+	lock.acquire();
+
+	// the previous listener hands its turn over directly
+	if (listening) {
+	    numWaitingListeners++;
+	    listenTurn.sleep();
+	}
+	else {
+	    listening = true;
+	}
+
+	int amount = take(buf, offset, length);
+	if (amount == 0) {
+	    // let speakers copy their words straight into buf
+	    listenBuf = buf;
+	    listenOffset = offset;
+	    listenLength = length;
+	    listenCount = 0;
+
+	    while (listenCount == 0)
+		data.sleep();
+
+	    amount = listenCount;
+	    listenBuf = null;
+	}
+
+	if (numWaitingListeners > 0) {
+	    numWaitingListeners--;
+	    listenTurn.wake();
+	}
+	else {
+	    listening = false;
+	}
+
+	lock.release();
+
+	return amount;
+    }
+
+    /**
+     * Wait for at least one word to be spoken, and then receive as many
+     * words as are available and fit in the specified array.
+     *
+     * @param	buf	the array in which to store the words.
+     * @return	the number of words received.
+     */
+    public int listen(int[] buf) {
+	return listen(buf, 0, buf.length);
+    }
+
+    /**
+     * Pass words from a speaker to the waiting listener, and then to the
+     * buffer, waking the listener if it received its first words.
+     *
+     * @return	the number of words passed.
+     */
+    private int put(int[] words, int offset, int length) {
+	int amount = 0;
+
+	// a listener only waits while the buffer is empty
+	if (listenBuf != null && listenCount < listenLength) {
+	    amount = Math.min(length, listenLength - listenCount);
+	    System.arraycopy(words, offset, listenBuf,
+			     listenOffset + listenCount, amount);
+
+	    if (listenCount == 0)
+		data.wake();
+	    listenCount += amount;
+	}
+
+	while (amount < length && count < buffer.length) {
+	    int tail = (head + count) % buffer.length;
+	    int chunk = Math.min(length - amount,
+				 Math.min(buffer.length - count,
+					  buffer.length - tail));
+	    System.arraycopy(words, offset + amount, buffer, tail, chunk);
+	    amount += chunk;
+	    count += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Pass words from the buffer, and then from the waiting speaker, to a
+     * listener, waking the speaker if it can make progress.
+     *
+     * @return	the number of words passed.
+     */
+    private int take(int[] buf, int offset, int length) {
+	int amount = 0;
+
+	while (amount < length && count > 0) {
+	    int chunk = Math.min(length - amount,
+				 Math.min(count, buffer.length - head));
+	    System.arraycopy(buffer, head, buf, offset + amount, chunk);
+	    amount += chunk;
+	    count -= chunk;
+	    head = (head + chunk) % buffer.length;
+	}
+
+	if (speakWords == null)
+	    return amount;
+
+	// the buffer is empty, so the waiting speaker's words come next
+	if (amount < length && speakLength > 0) {
+	    int chunk = Math.min(length - amount, speakLength);
+	    System.arraycopy(speakWords, speakOffset, buf, offset + amount,
+			     chunk);
+	    amount += chunk;
+	    speakOffset += chunk;
+	    speakLength -= chunk;
+	}
+
+	int free = buffer.length - count;
+	if (speakLength == 0 ||
+	    (free > 0 && free >= Math.min(speakLength, (buffer.length+1)/2)))
+	    room.wake();
+
+	return amount;
+    }
+
+    /** The buffered words, as a ring starting at <tt>head</tt>. */
+    private int[] buffer;
+    private int head = 0;
+    /** The number of buffered words. */
+    private int count = 0;
+
+    private Lock lock;
+    private Condition speakTurn, listenTurn, room, data;
+
+    /** <tt>true</tt> if a speaker has its turn. */
+    private boolean speaking = false;
+    private int numWaitingSpeakers = 0;
+    /** <tt>true</tt> if a listener has its turn. */
+    private boolean listening = false;
+    private int numWaitingListeners = 0;
+
+    /** The words of the waiting speaker that are not yet passed on. */
+    private int[] speakWords = null;
+    private int speakOffset, speakLength;
+
+    /** The array of the waiting listener, and how many words it holds. */
+    private int[] listenBuf = null;
+    private int listenOffset, listenLength, listenCount;
+}
@@ -7,7 +7,13 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads are kept in a list linked through the threads themselves,
+ * so <tt>sleep()</tt> allocates nothing, unlike <tt>Condition</tt>, which
+ * allocates a semaphore for each sleeping thread. A thread that is woken up
+ * does not go back on the ready queue only to block again on the lock, which
+ * the waker holds: it is moved straight to the lock's wait queue, and the
+ * lock is handed to it when it is its turn. <tt>wakeAll()</tt> moves every
+ * sleeping thread at once, with interrupts disabled.
  *
  * @see	nachos.threads.Condition
  */
@@ -33,9 +39,22 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (last == null)
+	    first = thread;
+	else
+	    last.nextWaiter = thread;
+	last = thread;
+
 	conditionLock.release();
+	KThread.sleep();
+
+	// the lock was handed over by release()
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	conditionLock.acquire();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -44,6 +63,21 @@ public class Condition2 {
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	if (first == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = first;
+	first = thread.nextWaiter;
+	if (first == null)
+	    last = null;
+	thread.nextWaiter = null;
+
+	conditionLock.addWaiter(thread);
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -52,7 +86,25 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	if (first == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (first != null) {
+	    KThread thread = first;
+	    first = thread.nextWaiter;
+	    thread.nextWaiter = null;
+
+	    conditionLock.addWaiter(thread);
+	}
+	last = null;
+
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
+    /** The first and last threads sleeping on this condition variable. */
+    private KThread first = null, last = null;
 }
@@ -0,0 +1,315 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler with an earliest-deadline-first class for real-time threads, on
+ * top of the priority policy for every other thread.
+ *
+ * <p>
+ * A thread becomes a periodic real-time thread by calling
+ * <tt>KThread.setDeadline()</tt>. It then releases a job every period, which
+ * must complete within its deadline, and completes each job by calling
+ * <tt>KThread.nextPeriod()</tt>. Whenever any real-time thread is waiting in a
+ * queue, the one whose current job has the earliest deadline is dequeued
+ * first; otherwise the queue behaves exactly like a
+ * <tt>PriorityScheduler</tt> queue. Each queue keeps its real-time threads in
+ * a binary heap ordered by deadline, and then by arrival.
+ *
+ * <p>
+ * A thread is only admitted if the total density of all real-time threads
+ * (each thread's budget divided by the smaller of its period and its
+ * deadline) stays at most <tt>DeadlineScheduler.maxUtilization</tt>, which
+ * defaults to 1. Under that bound, EDF meets every deadline as long as each
+ * job stays within its budget.
+ *
+ * <p>
+ * In queues that transfer priority, real-time threads wait by priority like
+ * any other thread; an admitted thread is given <tt>priorityMaximum</tt>, so
+ * it comes first there, and donates that priority to the holder. Completed
+ * jobs and deadline misses are counted in <tt>Stats</tt>.
+ */
+public class DeadlineScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new deadline scheduler.
+     */
+    public DeadlineScheduler() {
+	maxUtilization = Config.getDouble("DeadlineScheduler.maxUtilization",
+					  1.0);
+    }
+
+    /**
+     * Allocate a new deadline thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new deadline thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(transferPriority);
+    }
+
+    /**
+     * Admit the specified thread as a real-time thread, or change its
+     * parameters if it already is one, if the real-time threads can still
+     * meet their deadlines. Its first job is released now. Called by
+     * <tt>KThread.setDeadline()</tt>.
+     *
+     * @param	thread		the thread.
+     * @param	period		the ticks between the releases of two jobs.
+     * @param	deadline	the ticks after its release by which each job
+     *				must complete.
+     * @param	budget		the most ticks of processor time each job
+     *				needs.
+     * @return	<tt>true</tt> if the thread was admitted.
+     */
+    boolean admit(KThread thread, long period, long deadline, long budget) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(period > 0 && deadline > 0 && budget > 0);
+
+	DeadlineState state = getDeadlineState(thread);
+	Lib.assertTrue(state.edfQueue == null);
+
+	double density = (double) budget / Math.min(period, deadline);
+	double others = totalDensity - state.density;
+	if (others + density > maxUtilization + 1e-9)
+	    return false;
+
+	totalDensity = others + density;
+	state.density = density;
+	state.period = period;
+	state.deadline = deadline;
+	state.release = Machine.timer().getTime();
+	state.absoluteDeadline = state.release + deadline;
+
+	setPriority(thread, priorityMaximum);
+	return true;
+    }
+
+    /**
+     * Complete the current job of the specified real-time thread, counting
+     * it in the statistics. Called by <tt>KThread.nextPeriod()</tt>.
+     *
+     * @param	thread	the thread.
+     * @return	the time at which its next job is released.
+     */
+    long completeJob(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DeadlineState state = getDeadlineState(thread);
+	Lib.assertTrue(state.isRealTime());
+
+	if (Machine.timer().completeJob(state.absoluteDeadline))
+	    Lib.debug(dbgDeadline, thread + " missed deadline " +
+		      state.absoluteDeadline);
+
+	state.release += state.period;
+	state.absoluteDeadline = state.release + state.deadline;
+	return state.release;
+    }
+
+    /**
+     * Give back the density reserved by the specified thread, if it is a
+     * real-time thread, because it finished. Called by
+     * <tt>KThread.finish()</tt>.
+     *
+     * @param	thread	the finished thread.
+     */
+    void finished(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DeadlineState state = getDeadlineState(thread);
+	if (state.isRealTime())
+	    release(state);
+    }
+
+    /**
+     * Give back the density reserved by a real-time thread.
+     */
+    private void release(DeadlineState state) {
+	totalDensity = Math.max(totalDensity - state.density, 0);
+	state.density = 0;
+	state.period = 0;
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new DeadlineState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected DeadlineState getDeadlineState(KThread thread) {
+	return (DeadlineState) getThreadState(thread);
+    }
+
+    /** The most total density that admission control allows. */
+    private double maxUtilization;
+    /** The total density of all admitted real-time threads. */
+    private double totalDensity = 0;
+
+    private static final char dbgDeadline = 'e';
+
+    /**
+     * A <tt>PriorityQueue</tt> that dequeues its real-time threads first, in
+     * order of deadline. If the queue transfers priority, real-time threads
+     * are queued by priority instead.
+     */
+    protected class DeadlineQueue extends PriorityQueue {
+	DeadlineQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    DeadlineState state = getDeadlineState(thread);
+	    if (transferPriority || !state.isRealTime()) {
+		super.waitForAccess(thread);
+		return;
+	    }
+
+	    Lib.assertTrue(state.edfQueue == null);
+
+	    if (size == heap.length) {
+		DeadlineState[] grown = new DeadlineState[heap.length*2];
+		System.arraycopy(heap, 0, grown, 0, size);
+		heap = grown;
+	    }
+
+	    state.edfQueue = this;
+	    state.arrival = numArrivals++;
+	    siftUp(state, size++);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return super.nextThread();
+
+	    DeadlineState state = heap[0];
+	    DeadlineState last = heap[--size];
+	    heap[size] = null;
+	    if (size > 0)
+		siftDown(last, 0);
+
+	    state.edfQueue = null;
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(size == 0);
+
+	    super.acquire(thread);
+	}
+
+	public boolean isEmpty() {
+	    return size == 0 && super.isEmpty();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" +
+				 heap[i].absoluteDeadline + ") ");
+	    super.print();
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>.
+	 */
+	private boolean before(DeadlineState a, DeadlineState b) {
+	    if (a.absoluteDeadline != b.absoluteDeadline)
+		return a.absoluteDeadline < b.absoluteDeadline;
+
+	    return a.arrival < b.arrival;
+	}
+
+	private void siftUp(DeadlineState state, int index) {
+	    while (index > 0) {
+		int parent = (index-1)/2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	}
+
+	private void siftDown(DeadlineState state, int index) {
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], state))
+		    break;
+
+		heap[index] = heap[child];
+		index = child;
+	    }
+
+	    heap[index] = state;
+	}
+
+	/** The waiting real-time threads, as a heap ordered by deadline. */
+	private DeadlineState[] heap = new DeadlineState[4];
+	/** The number of waiting real-time threads. */
+	private int size = 0;
+	/** The number of times a real-time thread has waited in this queue. */
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority state, and if it is a
+     * real-time thread, its period, deadline, and current job.
+     */
+    protected class DeadlineState extends ThreadState {
+	/**
+	 * Allocate a new <tt>DeadlineState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public DeadlineState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread is an admitted real-time thread.
+	 */
+	boolean isRealTime() {
+	    return period > 0;
+	}
+
+	/** The ticks between job releases, or 0 if not a real-time thread. */
+	long period = 0;
+	/** The ticks after its release by which each job must complete. */
+	long deadline;
+	/** The density this thread reserved when it was admitted. */
+	double density = 0;
+	/** The release time of the current job. */
+	long release;
+	/** The deadline of the current job. */
+	long absoluteDeadline;
+
+	/** The queue whose heap this thread is waiting in, or <tt>null</tt>. */
+	DeadlineQueue edfQueue = null;
+	/** When this thread started waiting, to order equal deadlines. */
+	long arrival;
+    }
+}
@@ -0,0 +1,515 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares the processor fairly, in the manner of the Linux
+ * completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the ticks it has run for, scaled
+ * by the inverse of its weight. The next thread to be dequeued is always the
+ * waiting thread with the lowest virtual runtime, so over time each thread
+ * runs for a share of the ticks proportional to its weight. A thread's weight
+ * comes from <tt>KThread.getPriority()</tt>: priority 1 has weight 1024, and
+ * each step up or down multiplies the weight by about 1.25.
+ *
+ * <p>
+ * A thread is charged for the ticks that actually passed (as counted by
+ * <tt>Interrupt.tick()</tt>) between being dequeued and next waiting in a
+ * queue while it is the current thread, that is, when it yields or blocks.
+ * A thread that has been blocked resumes at no less than the queue's minimum
+ * virtual runtime minus half a timer interval, so a thread cannot save up
+ * credit by sleeping.
+ *
+ * <p>
+ * The waiting threads are kept in a red-black tree ordered by virtual runtime,
+ * and then by arrival order. The tree nodes are the threads' scheduling
+ * states, so adding and removing threads never allocates memory, and each
+ * takes time logarithmic in the number of waiting threads. Priority is not
+ * donated.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair scheduler.
+     */
+    public FairScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Priority is not donated.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return thread.getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	thread.setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default priority for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * The weight of each priority, from the Linux weights for nice values 1
+     * down to -6.
+     */
+    private static final int[] weights = {
+	820, 1024, 1277, 1586, 1991, 2501, 3121, 3906
+    };
+
+    /**
+     * Return the weight of the specified thread.
+     */
+    static int weight(KThread thread) {
+	int priority = Math.max(Math.min(thread.getPriority(), priorityMaximum),
+				priorityMinimum);
+	return weights[priority];
+    }
+
+    /**
+     * The credit given to a thread that has been blocked: half a timer
+     * interval, in virtual ticks.
+     */
+    static final long sleeperCredit = Stats.TimerTicks / 2;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FairState getFairState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairState(thread);
+
+	return (FairState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * virtual runtime, using a red-black tree as in <i>Introduction to
+     * Algorithms</i>, with a sentinel for the leaves and the parent of the
+     * root.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue() {
+	    nil.red = false;
+	    root = leftmost = nil;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState state = getFairState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (thread == KThread.currentThread())
+		state.charge();
+	    else
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - sleeperCredit);
+
+	    state.waitingOn = this;
+	    state.arrival = numArrivals++;
+	    insert(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (leftmost == nil)
+		return null;
+
+	    FairState state = leftmost;
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	    delete(state);
+
+	    state.waitingOn = null;
+	    state.dispatched = Machine.timer().getTime();
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    print(root);
+	}
+
+	private void print(FairState node) {
+	    if (node == nil)
+		return;
+
+	    print(node.left);
+	    System.out.print(node.thread + "(" + node.vruntime + ") ");
+	    print(node.right);
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>.
+	 */
+	private boolean before(FairState a, FairState b) {
+	    if (a.vruntime != b.vruntime)
+		return a.vruntime < b.vruntime;
+
+	    return a.arrival < b.arrival;
+	}
+
+	private void insert(FairState z) {
+	    FairState y = nil;
+	    FairState x = root;
+	    boolean isLeftmost = true;
+
+	    while (x != nil) {
+		y = x;
+		if (before(z, x)) {
+		    x = x.left;
+		}
+		else {
+		    x = x.right;
+		    isLeftmost = false;
+		}
+	    }
+
+	    z.parent = y;
+	    if (y == nil)
+		root = z;
+	    else if (before(z, y))
+		y.left = z;
+	    else
+		y.right = z;
+
+	    z.left = z.right = nil;
+	    z.red = true;
+
+	    if (isLeftmost)
+		leftmost = z;
+
+	    insertFixup(z);
+	}
+
+	private void insertFixup(FairState z) {
+	    while (z.parent.red) {
+		FairState grandparent = z.parent.parent;
+
+		if (z.parent == grandparent.left) {
+		    FairState y = grandparent.right;
+		    if (y.red) {
+			z.parent.red = false;
+			y.red = false;
+			grandparent.red = true;
+			z = grandparent;
+		    }
+		    else {
+			if (z == z.parent.right) {
+			    z = z.parent;
+			    rotateLeft(z);
+			}
+			z.parent.red = false;
+			z.parent.parent.red = true;
+			rotateRight(z.parent.parent);
+		    }
+		}
+		else {
+		    FairState y = grandparent.left;
+		    if (y.red) {
+			z.parent.red = false;
+			y.red = false;
+			grandparent.red = true;
+			z = grandparent;
+		    }
+		    else {
+			if (z == z.parent.left) {
+			    z = z.parent;
+			    rotateRight(z);
+			}
+			z.parent.red = false;
+			z.parent.parent.red = true;
+			rotateLeft(z.parent.parent);
+		    }
+		}
+	    }
+
+	    root.red = false;
+	}
+
+	private void delete(FairState z) {
+	    if (z == leftmost) {
+		// the leftmost node has no left child
+		leftmost = (z.right != nil) ? minimum(z.right) : z.parent;
+	    }
+
+	    FairState x;
+	    FairState y = z;
+	    boolean yWasRed = y.red;
+
+	    if (z.left == nil) {
+		x = z.right;
+		transplant(z, z.right);
+	    }
+	    else if (z.right == nil) {
+		x = z.left;
+		transplant(z, z.left);
+	    }
+	    else {
+		y = minimum(z.right);
+		yWasRed = y.red;
+		x = y.right;
+
+		if (y.parent == z) {
+		    x.parent = y;
+		}
+		else {
+		    transplant(y, y.right);
+		    y.right = z.right;
+		    y.right.parent = y;
+		}
+
+		transplant(z, y);
+		y.left = z.left;
+		y.left.parent = y;
+		y.red = z.red;
+	    }
+
+	    if (!yWasRed)
+		deleteFixup(x);
+
+	    z.left = z.right = z.parent = null;
+	    nil.parent = null;
+	}
+
+	private void deleteFixup(FairState x) {
+	    while (x != root && !x.red) {
+		if (x == x.parent.left) {
+		    FairState w = x.parent.right;
+		    if (w.red) {
+			w.red = false;
+			x.parent.red = true;
+			rotateLeft(x.parent);
+			w = x.parent.right;
+		    }
+		    if (!w.left.red && !w.right.red) {
+			w.red = true;
+			x = x.parent;
+		    }
+		    else {
+			if (!w.right.red) {
+			    w.left.red = false;
+			    w.red = true;
+			    rotateRight(w);
+			    w = x.parent.right;
+			}
+			w.red = x.parent.red;
+			x.parent.red = false;
+			w.right.red = false;
+			rotateLeft(x.parent);
+			x = root;
+		    }
+		}
+		else {
+		    FairState w = x.parent.left;
+		    if (w.red) {
+			w.red = false;
+			x.parent.red = true;
+			rotateRight(x.parent);
+			w = x.parent.left;
+		    }
+		    if (!w.right.red && !w.left.red) {
+			w.red = true;
+			x = x.parent;
+		    }
+		    else {
+			if (!w.left.red) {
+			    w.right.red = false;
+			    w.red = true;
+			    rotateLeft(w);
+			    w = x.parent.left;
+			}
+			w.red = x.parent.red;
+			x.parent.red = false;
+			w.left.red = false;
+			rotateRight(x.parent);
+			x = root;
+		    }
+		}
+	    }
+
+	    x.red = false;
+	}
+
+	private void transplant(FairState u, FairState v) {
+	    if (u.parent == nil)
+		root = v;
+	    else if (u == u.parent.left)
+		u.parent.left = v;
+	    else
+		u.parent.right = v;
+
+	    v.parent = u.parent;
+	}
+
+	private FairState minimum(FairState x) {
+	    while (x.left != nil)
+		x = x.left;
+
+	    return x;
+	}
+
+	private void rotateLeft(FairState x) {
+	    FairState y = x.right;
+
+	    x.right = y.left;
+	    if (y.left != nil)
+		y.left.parent = x;
+
+	    y.parent = x.parent;
+	    if (x.parent == nil)
+		root = y;
+	    else if (x == x.parent.left)
+		x.parent.left = y;
+	    else
+		x.parent.right = y;
+
+	    y.left = x;
+	    x.parent = y;
+	}
+
+	private void rotateRight(FairState x) {
+	    FairState y = x.left;
+
+	    x.left = y.right;
+	    if (y.right != nil)
+		y.right.parent = x;
+
+	    y.parent = x.parent;
+	    if (x.parent == nil)
+		root = y;
+	    else if (x == x.parent.right)
+		x.parent.right = y;
+	    else
+		x.parent.left = y;
+
+	    y.right = x;
+	    x.parent = y;
+	}
+
+	/** The sentinel for the leaves, and for the parent of the root. */
+	private FairState nil = new FairState(null);
+	private FairState root;
+	/** The waiting thread with the lowest virtual runtime. */
+	private FairState leftmost;
+	/** The lowest virtual runtime this queue has dequeued. */
+	private long minVruntime = 0;
+	/** The number of times a thread has waited in this queue. */
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its virtual runtime, and its node in
+     * the tree of the queue it is waiting in, if any.
+     */
+    protected class FairState {
+	/**
+	 * Allocate a new <tt>FairState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public FairState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Charge this thread for the ticks since it was last dequeued, scaled
+	 * by its weight.
+	 */
+	void charge() {
+	    long now = Machine.timer().getTime();
+
+	    vruntime += (now - dispatched) * weights[priorityDefault] /
+		weight(thread);
+	    dispatched = now;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** This thread's virtual runtime. */
+	protected long vruntime = 0;
+
+	/** The time at which this thread was last dequeued. */
+	long dispatched = 0;
+	/** When this thread started waiting, to order equal runtimes. */
+	long arrival;
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	FairQueue waitingOn = null;
+
+	FairState left, right, parent;
+	boolean red;
+    }
+}
@@ -3,10 +3,11 @@ package nachos.threads;
 import nachos.machine.*;
 import nachos.threads.FifoQueue;
 
-import java.util.LinkedList;
-import java.util.Vector;
-import java.util.Iterator;
-
+/**
+ * A first-in first-out queue of threads, used by <tt>PriorityScheduler</tt>
+ * for each priority. Threads are kept in a ring buffer, so adding and removing
+ * threads does not allocate memory except when the buffer has to grow.
+ */
 public class FifoQueue extends ThreadQueue {
 	/**
 	 * Add a thread to the end of the wait queue.
@@ -21,7 +22,16 @@ public class FifoQueue extends ThreadQueue {
 	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    waitQueue.add(thread);
+	    if (count == waitQueue.length) {
+		// full: double the buffer, unwrapping it at the same time
+		KThread[] grown = new KThread[waitQueue.length*2];
+		for (int i=0; i<count; i++)
+		    grown[i] = waitQueue[(head+i) & (waitQueue.length-1)];
+		waitQueue = grown;
+		head = 0;
+	    }
+	    waitQueue[(head+count) & (waitQueue.length-1)] = thread;
+	    count++;
 	    //reset timeslice
 	    thread.setTimeSlice(this.timeSlice);
 	    
@@ -37,16 +47,48 @@ public class FifoQueue extends ThreadQueue {
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    if (waitQueue.isEmpty())
+	    if (count == 0)
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    KThread thread = waitQueue[head];
+	    removeHead();
+	    return thread;
 	}
 
 	public void removeHead(){
-		if (!waitQueue.isEmpty())
-			waitQueue.removeFirst();
+		if (count > 0) {
+			waitQueue[head] = null;
+			head = (head+1) & (waitQueue.length-1);
+			count--;
+		}
 	}
+	/**
+	 * Remove the specified thread from the queue, if it is there.
+	 *
+	 * @param	thread	the thread to remove.
+	 * @return	<tt>true</tt> if the thread was removed.
+	 */
+	public boolean remove(KThread thread) {
+		if (count > 0 && waitQueue[head] == thread) {
+			removeHead();
+			return true;
+		}
+
+		for (int i=1; i<count; i++) {
+			int mask = waitQueue.length-1;
+			if (waitQueue[(head+i) & mask] == thread) {
+				// close the gap by shifting the rest up one
+				for (int j=i; j<count-1; j++)
+					waitQueue[(head+j) & mask] =
+						waitQueue[(head+j+1) & mask];
+				waitQueue[(head+count-1) & mask] = null;
+				count--;
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * The specified thread has received exclusive access, without using
 	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
@@ -55,12 +97,12 @@ public class FifoQueue extends ThreadQueue {
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    Lib.assertTrue(waitQueue.isEmpty());
+	    Lib.assertTrue(count == 0);
 	}
 	
 	// check whether the readyqueue is empty,return true or false 
 	public boolean isEmpty(){
-		return waitQueue.isEmpty();
+		return count == 0;
 	}
 
 	/**
@@ -69,18 +111,29 @@ public class FifoQueue extends ThreadQueue {
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
-	    for (Iterator i=waitQueue.iterator(); i.hasNext(); )
-		System.out.print((KThread) i.next() + " ");
-		if(waitQueue.isEmpty())
+	    for (int i=0; i<count; i++)
+		System.out.print(waitQueue[(head+i) & (waitQueue.length-1)] + " ");
+		if(count == 0)
 			System.out.print("null");
 		System.out.print("\n");
 	}
 	
+	// the number of threads in the queue
+	public int size(){
+		return count;
+	}
+
+	// the head of the queue, or null if the queue is empty
 	public KThread waitQueueHead(){
-		return  waitQueue.get(0);
+		return  waitQueue[head];
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	/** Ring buffer of waiting threads. Its length is always a power of 2. */
+	private KThread[] waitQueue = new KThread[8];
+	/** Index of the first thread in <tt>waitQueue</tt>. */
+	private int head = 0;
+	/** Number of threads in <tt>waitQueue</tt>. */
+	private int count = 0;
 	/**
 	 * Vector subPriorityQueue is to implement multi-queue dispatching.
 	 * Each subPriorityQueue has its own queue with specific priority.
@@ -170,6 +170,9 @@ public class KThread {
 
     private void runThread() {
 	begin();
+	// the idle thread has no time slice, but must never finish
+	if (this == idleThread)
+		target.run();
 	while(currentThread.getTimeSlice()>0)
 		target.run();
 	System.out.println("STOP RUN THIS THREAD AND TRY TO FINISH IT");
@@ -206,6 +209,17 @@ public class KThread {
 
 	Machine.autoGrader().finishingCurrentThread();
 
+	if (currentThread.joinQueue != null) {
+	    KThread joiner = currentThread.joinQueue.nextThread();
+	    if (joiner != null)
+		joiner.ready();
+	}
+
+	// a real-time thread gives back the processor time it reserved
+	if (ThreadedKernel.scheduler instanceof DeadlineScheduler)
+	    ((DeadlineScheduler) ThreadedKernel.scheduler)
+		.finished(currentThread);
+
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
@@ -290,9 +304,7 @@ public class KThread {
 	    currentThread.status = statusBlocked;
 	else{
 		//finished
-		//remove it from ready queue
 		System.out.println("finished");
-		readyQueue.waitForAccess(currentThread);
 	}
 	
 	
@@ -316,6 +328,11 @@ public class KThread {
 	if (this != idleThread){
 		System.out.println( "["+this.name+"] READY WITH PRIORITY "+this.priority);
 		readyQueue.waitForAccess(this);
+		numReady++;
+
+		// a tickless alarm may now need to preempt the current thread
+		if (this != currentThread && ThreadedKernel.alarm != null)
+		    ThreadedKernel.alarm.threadReady();
 	}
 
 	Machine.autoGrader().readyThread(this);
@@ -337,6 +354,72 @@ public class KThread {
 
 	Lib.assertTrue(this != currentThread);
 
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (status != statusFinished) {
+	    // the joining thread donates its priority to this thread
+	    if (joinQueue == null) {
+		joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+		joinQueue.acquire(this);
+	    }
+	    
+	    joinQueue.waitForAccess(currentThread);
+	    sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Declare this thread to be a periodic real-time thread. Starting now,
+     * the thread releases a job every <i>period</i> ticks; each job needs at
+     * most <i>budget</i> ticks of processor time, and must complete within
+     * <i>deadline</i> ticks of its release. The thread completes each job by
+     * calling <tt>nextPeriod()</tt>.
+     *
+     * <p>
+     * Only a <tt>DeadlineScheduler</tt> supports real-time threads, and it
+     * admits the thread only if all real-time threads can still meet their
+     * deadlines.
+     *
+     * @param	period		the ticks between the releases of two jobs.
+     * @param	deadline	the ticks after its release by which each job
+     *				must complete.
+     * @param	budget		the most ticks of processor time each job
+     *				needs.
+     * @return	<tt>true</tt> if the thread was admitted as a real-time
+     *		thread.
+     */
+    public boolean setDeadline(long period, long deadline, long budget) {
+	if (!(ThreadedKernel.scheduler instanceof DeadlineScheduler))
+	    return false;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean admitted = ((DeadlineScheduler) ThreadedKernel.scheduler)
+	    .admit(this, period, deadline, budget);
+
+	Machine.interrupt().restore(intStatus);
+	return admitted;
+    }
+
+    /**
+     * Complete the current job of the current thread, which must be a
+     * real-time thread, and wait until its next job is released.
+     */
+    public static void nextPeriod() {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof DeadlineScheduler);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long release = ((DeadlineScheduler) ThreadedKernel.scheduler)
+	    .completeJob(currentThread);
+
+	Machine.interrupt().restore(intStatus);
+
+	long now = Machine.timer().getTime();
+	if (release > now)
+	    ThreadedKernel.alarm.waitUntil(release - now);
     }
 
     /**
@@ -375,8 +458,17 @@ public class KThread {
     	
 	KThread nextThread = readyQueue.nextThread();
 	
-	if (nextThread == null)
+	if (nextThread == null) {
+	    // nothing can become ready before the next interrupt
+	    Machine.interrupt().idle();
 	    nextThread = idleThread;
+	}
+	else {
+	    numReady--;
+	}
+
+	if (ThreadedKernel.alarm != null)
+	    ThreadedKernel.alarm.threadDispatched();
 	System.out.println("SWITCH TO THREAD [" +nextThread.name+"] ");
 		nextThread.run();
 	
@@ -497,6 +589,12 @@ public class KThread {
      * @see	nachos.threads.PriorityScheduler.ThreadState
      */
     public Object schedulingState = null;
+
+    /**
+     * The next thread sleeping on the same <tt>Condition2</tt>, if this
+     * thread is sleeping on one.
+     */
+    KThread nextWaiter = null;
     
     //@param priority for priorityScheduler. default priority of every thread is 1
     private int priority;
@@ -567,6 +665,11 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /**
+     * The thread waiting in <tt>join()</tt> for this thread to finish, if
+     * any. Created by the first call to <tt>join()</tt>.
+     */
+    private ThreadQueue joinQueue = null;
 
     /**
      * Unique identifier for this thread. Used to deterministically compare
@@ -576,6 +679,18 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
+    /**
+     * Return the number of threads that are ready to run, not counting the
+     * current thread or the idle thread.
+     *
+     * @return	the number of ready threads.
+     */
+    static int numReadyThreads() {
+	return numReady;
+    }
+
+    /** The number of threads on the ready queue. */
+    private static int numReady = 0;
     private static ThreadQueue readyQueue = null;
     public static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
@@ -18,6 +18,21 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A lock that is never contended touches only its holder. Nachos only
+ * switches threads when interrupts are enabled, so the holder can be tested
+ * and set without disabling them. The wait queue is only allocated from the
+ * scheduler the first time a thread has to wait, and only then is the holder
+ * handed to it, so that priority can be donated.
+ *
+ * <p>
+ * Since an uncontended <tt>acquire()</tt> or <tt>release()</tt> does not
+ * disable and re-enable interrupts, it does not advance the simulated time
+ * by a kernel tick either, and no interrupt or preemption can occur during
+ * it. A thread that only acquires and releases uncontended locks is
+ * therefore never preempted, and runs for no simulated time, until it calls
+ * something else that re-enables interrupts.
  */
 public class Lock {
     /**
@@ -31,20 +46,21 @@ public class Lock {
      * this lock.
      */
     public void acquire() {
-	Lib.assertTrue(!isHeldByCurrentThread());
-
-	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
+	Lib.assertTrue(lockHolder != thread);
+	numAcquires++;
 
-	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
-	}
-	else {
-	    waitQueue.acquire(thread);
+	if (lockHolder == null) {
 	    lockHolder = thread;
+	    return;
 	}
 
+	boolean intStatus = Machine.interrupt().disable();
+	numContended++;
+
+	addWaiter(thread);
+	KThread.sleep();
+
 	Lib.assertTrue(lockHolder == thread);
 
 	Machine.interrupt().restore(intStatus);
@@ -56,14 +72,42 @@ public class Lock {
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
+	if (numWaiters == 0) {
+	    lockHolder = null;
+	    return;
+	}
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
-	    lockHolder.ready();
+	numWaiters--;
+	lockHolder = waitQueue.nextThread();
+	lockHolder.ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Add a thread to the threads waiting for this lock, which must be held.
+     * The thread is given the lock by <tt>release()</tt>, and made ready.
+     * Called by <tt>acquire()</tt>, and by <tt>Condition2</tt> to move a
+     * woken thread straight to this lock.
+     *
+     * @param	thread	the thread, which must be blocked or about to block.
+     */
+    void addWaiter(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(lockHolder != null && lockHolder != thread);
+
+	if (waitQueue == null)
+	    waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+
+	// the queue only learns of the holder once there is a waiter
+	if (numWaiters++ == 0)
+	    waitQueue.acquire(lockHolder);
+
+	waitQueue.waitForAccess(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -73,7 +117,31 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the number of times this lock has been acquired.
+     *
+     * @return	the number of acquisitions.
+     */
+    public long getAcquireCount() {
+	return numAcquires;
+    }
+
+    /**
+     * Return the number of times a thread had to wait to acquire this lock.
+     * A lock whose contended count is a large part of its acquire count is
+     * a bottleneck.
+     *
+     * @return	the number of contended acquisitions.
+     */
+    public long getContendedCount() {
+	return numContended;
+    }
+
     private KThread lockHolder = null;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(true);
+    /** The threads waiting for this lock, allocated on first contention. */
+    private ThreadQueue waitQueue = null;
+    /** The number of threads waiting in <tt>waitQueue</tt>. */
+    private int numWaiters = 0;
+
+    private long numAcquires = 0, numContended = 0;
 }
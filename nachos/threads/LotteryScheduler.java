@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,6 +21,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the effective ticket counts of its waiting threads in a
+ * Fenwick tree, so holding a lottery and adding or removing a thread take
+ * time logarithmic in the number of waiting threads. Ticket counts are summed
+ * as <tt>long</tt>s. Winners are drawn with <tt>Lib.random()</tt>, so a run
+ * can be reproduced from its random seed.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -32,7 +35,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,9 +45,310 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-    	//this function has not been finished 
-    	//this function is to transfer the priority???
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    /**
+     * Get the effective number of tickets of the specified thread, capped at
+     * <tt>Integer.MAX_VALUE</tt>. Use <tt>getEffectiveTickets()</tt> for the
+     * exact number.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getEffectiveTickets(thread), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the effective number of tickets of the specified thread: its own
+     * tickets, plus the effective tickets of every thread waiting for it
+     * through a lock or a join. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to get the effective tickets of.
+     * @return	the thread's effective number of tickets.
+     */
+    public long getEffectiveTickets(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).effectiveTickets;
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	LotteryState state = getLotteryState(thread);
+	state.changeTickets(priority - state.tickets);
+	state.tickets = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * Waiting thread <i>i</i> occupies slot <i>i</i> of a Fenwick tree of
+     * effective ticket counts; removing a thread moves the last thread into
+     * its slot, so the slots in use are always <tt>0</tt> to
+     * <tt>size-1</tt>.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (size == slots.length)
+		grow();
+
+	    state.waitingOn = this;
+	    state.slot = size;
+	    slots[size++] = state;
+	    addTickets(state.slot, state.effectiveTickets);
+
+	    if (transferPriority && holder != null)
+		holder.changeTickets(state.effectiveTickets);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the tickets of any waiters move to the new holder
+	    if (transferPriority) {
+		if (holder != null)
+		    holder.changeTickets(-totalTickets);
+		holder = getLotteryState(thread);
+		holder.changeTickets(totalTickets);
+	    }
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (transferPriority && holder != null) {
+		holder.changeTickets(-totalTickets);
+		holder = null;
+	    }
+
+	    if (size == 0)
+		return null;
+
+	    LotteryState winner = slots[findTicket(Lib.random(totalTickets))];
+	    remove(winner);
+
+	    if (transferPriority) {
+		holder = winner;
+		holder.changeTickets(totalTickets);
+	    }
+
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(slots[i].thread + "(" +
+				 slots[i].effectiveTickets + ") ");
+	}
+
+	/**
+	 * Remove a waiting thread, moving the last thread into its slot.
+	 */
+	private void remove(LotteryState state) {
+	    int slot = state.slot;
+	    LotteryState last = slots[size-1];
+
+	    addTickets(slot, -state.effectiveTickets);
+	    if (last != state) {
+		addTickets(last.slot, -last.effectiveTickets);
+		addTickets(slot, last.effectiveTickets);
+		last.slot = slot;
+		slots[slot] = last;
+	    }
+	    slots[--size] = null;
+
+	    state.waitingOn = null;
+	}
+
+	/**
+	 * Add <i>delta</i> to the tickets of the specified slot.
+	 */
+	void addTickets(int slot, long delta) {
+	    totalTickets += delta;
+
+	    for (int i=slot+1; i<=slots.length; i += i & -i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Return the slot holding the specified ticket, numbering the tickets
+	 * of slot 0 first, then those of slot 1, and so on.
+	 */
+	private int findTicket(long ticket) {
+	    int i = 0;
+
+	    for (int step=slots.length; step>0; step >>= 1) {
+		if (i+step <= slots.length && tree[i+step] <= ticket) {
+		    i += step;
+		    ticket -= tree[i];
+		}
+	    }
+
+	    // i is the number of slots whose tickets are all below the ticket
+	    return i;
+	}
+
+	private void grow() {
+	    LotteryState[] grown = new LotteryState[slots.length*2];
+	    System.arraycopy(slots, 0, grown, 0, size);
+	    slots = grown;
+
+	    tree = new long[slots.length+1];
+	    totalTickets = 0;
+	    for (int i=0; i<size; i++)
+		addTickets(i, slots[i].effectiveTickets);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread holding the resource, if this queue transfers tickets. */
+	private LotteryState holder = null;
+	/** The waiting threads, by slot. Its length is a power of 2. */
+	private LotteryState[] slots = new LotteryState[8];
+	/** The number of waiting threads. */
+	private int size = 0;
+	/** Fenwick tree of the tickets in each slot, indexed from 1. */
+	private long[] tree = new long[slots.length+1];
+	/** The total effective tickets of all waiting threads. */
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The lottery state of a thread: its own tickets, its effective tickets,
+     * and the queue it is waiting in, if any.
+     *
+     * <p>
+     * A thread's effective tickets are its own tickets plus the total
+     * tickets waiting in each queue that transfers tickets and that it holds.
+     * Since tickets add, a change is passed up the donation chain as a
+     * difference, which costs time proportional to the length of the chain
+     * times the logarithm of the number of threads in each queue.
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of this thread, and to
+	 * those of every thread it donates to.
+	 */
+	void changeTickets(long delta) {
+	    LotteryState state = this;
+
+	    while (state != null && delta != 0) {
+		state.effectiveTickets += delta;
+
+		LotteryQueue queue = state.waitingOn;
+		if (queue == null)
+		    return;
+
+		queue.addTickets(state.slot, delta);
+		state = queue.transferPriority ? queue.holder : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** This thread's own tickets. */
+	protected int tickets = priorityDefault;
+	/** This thread's tickets plus the tickets donated to it. */
+	protected long effectiveTickets = priorityDefault;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	LotteryQueue waitingOn = null;
+	/** This thread's slot in <tt>waitingOn</tt>. */
+	int slot;
     }
 }
@@ -0,0 +1,368 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept at one of
+ * <tt>priorityMaximum+1</tt> levels; the next thread to be dequeued is always
+ * the thread that has waited longest at the highest occupied level, as in a
+ * <tt>PriorityScheduler</tt>. Unlike a priority scheduler, the level of a
+ * thread is chosen by the scheduler from the way the thread behaves:
+ *
+ * <ul>
+ * <li>A new thread starts at the highest level.
+ * <li>Each level has a quantum, which doubles at each level down. A thread
+ * is given the quantum of its level in <tt>KThread.timeSlice</tt> whenever it
+ * waits, and the time slice is used up by kernel ticks as it runs (see
+ * <tt>KThread.subTimeSlice()</tt>). Once a thread has used a whole quantum at
+ * its level, over any number of runs, it moves down a level. A thread
+ * therefore cannot keep its level by yielding just before its quantum ends.
+ * <li>A thread that is woken up after running for less than half a quantum
+ * since it was last woken is taken to be waiting on I/O, and moves up a
+ * level. Interactive threads, such as those reading from a
+ * <tt>SynchConsole</tt>, quickly rise above threads that only compute.
+ * <li>Every <tt>MultiLevelFeedbackScheduler.boostInterval</tt> ticks (by
+ * default, <tt>20*Stats.TimerTicks</tt>), every thread is moved back to the
+ * highest level, so that no thread starves.
+ * </ul>
+ *
+ * <p>
+ * The boost is applied lazily: it starts a new epoch, and a queue or thread
+ * still in an older epoch is moved to the highest level the next time it is
+ * used. Priority is not donated.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MultiLevelFeedbackScheduler() {
+	boostInterval = Config.getInteger("MultiLevelFeedbackScheduler.boostInterval",
+					  20*Stats.TimerTicks);
+	Lib.assertTrue(boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	ignored. Priority is not donated.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getFeedbackState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the specified level, with a fresh quantum.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getFeedbackState(thread).setLevel(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The level of a new thread.
+     */
+    public static final int priorityDefault = 7;
+    /**
+     * The lowest level.
+     */
+    public static final int priorityMinimum = 0;
+    /**
+     * The highest level.
+     */
+    public static final int priorityMaximum = 7;
+
+    /**
+     * Return the quantum of the specified level: one kernel tick at the
+     * highest level, doubling at each level down.
+     *
+     * @param	level	the level.
+     * @return	the quantum of the level, in ticks.
+     */
+    public static int quantum(int level) {
+	return Stats.KernelTick << (priorityMaximum - level);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FeedbackState getFeedbackState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FeedbackState(thread);
+
+	FeedbackState state = (FeedbackState) thread.schedulingState;
+	if (state.epoch != currentEpoch())
+	    state.boost();
+
+	return state;
+    }
+
+    /**
+     * Return the current boost epoch, starting a new one if
+     * <tt>boostInterval</tt> ticks have passed since the last boost.
+     */
+    private int currentEpoch() {
+	long time = Machine.timer().getTime();
+
+	if (time - lastBoost >= boostInterval) {
+	    lastBoost = time;
+	    epoch++;
+	}
+
+	return epoch;
+    }
+
+    private int boostInterval;
+    private long lastBoost = 0;
+    private int epoch = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> with a <tt>FifoQueue</tt> for each level. As in
+     * <tt>PriorityScheduler.PriorityQueue</tt>, bit <i>l</i> of
+     * <tt>occupied</tt> is set if and only if level <i>l</i> has a waiting
+     * thread.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	FeedbackQueue() {
+	    for (int i=priorityMinimum; i<=priorityMaximum; i++) {
+		levels[i] = new FifoQueue(i);
+		levels[i].timeSlice = quantum(i);
+	    }
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FeedbackState state = getFeedbackState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    boostIfStale();
+
+	    state.charge(thread != KThread.currentThread());
+	    add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boostIfStale();
+
+	    if (occupied == 0)
+		return null;
+
+	    int level = 31 - Integer.numberOfLeadingZeros(occupied);
+	    KThread thread = levels[level].nextThread();
+	    if (levels[level].isEmpty())
+		occupied &= ~(1 << level);
+
+	    getFeedbackState(thread).waitingOn = null;
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=priorityMaximum; i>=priorityMinimum; i--) {
+		if ((occupied & (1 << i)) != 0) {
+		    System.out.print("level " + i + ": ");
+		    levels[i].print();
+		}
+	    }
+	}
+
+	/**
+	 * Add a thread at its level, giving it the quantum of that level.
+	 */
+	private void add(FeedbackState state) {
+	    levels[state.level].waitForAccess(state.thread);
+	    occupied |= 1 << state.level;
+
+	    state.waitingOn = this;
+	    state.granted = state.thread.getTimeSlice();
+	}
+
+	/**
+	 * Remove a waiting thread, if it is waiting in this queue.
+	 */
+	void remove(FeedbackState state) {
+	    if (levels[state.level].remove(state.thread) &&
+		levels[state.level].isEmpty())
+		occupied &= ~(1 << state.level);
+
+	    state.waitingOn = null;
+	}
+
+	/**
+	 * If a boost has happened since this queue was last used, move every
+	 * waiting thread to the highest level, keeping the threads at each
+	 * level in order.
+	 */
+	private void boostIfStale() {
+	    int current = currentEpoch();
+	    if (queueEpoch == current)
+		return;
+
+	    queueEpoch = current;
+
+	    for (int i=priorityMaximum; i>=priorityMinimum; i--) {
+		FifoQueue level = levels[i];
+		for (int n=level.size(); n>0; n--) {
+		    FeedbackState state = getFeedbackState(level.nextThread());
+		    state.waitingOn = null;
+		    state.level = priorityMaximum;
+		    state.used = 0;
+		    add(state);
+		}
+	    }
+	    occupied = (occupied == 0) ? 0 : 1 << priorityMaximum;
+	}
+
+	private FifoQueue[] levels = new FifoQueue[priorityMaximum+1];
+	private int occupied = 0;
+	private int queueEpoch = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of its quantum
+     * it has used at that level, and the queue it is waiting in, if any.
+     */
+    protected class FeedbackState {
+	/**
+	 * Allocate a new <tt>FeedbackState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public FeedbackState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = currentEpoch();
+	}
+
+	/**
+	 * Charge this thread for the part of its time slice it has used since
+	 * it last waited, moving it down a level if it has used its quantum.
+	 * If it was woken up by another thread after a short burst, move it
+	 * up a level instead.
+	 *
+	 * @param	woken	<tt>true</tt> if this thread was blocked, and
+	 *			is being woken up by another thread.
+	 */
+	void charge(boolean woken) {
+	    int ran = Math.max(granted - thread.getTimeSlice(), 0);
+	    used += ran;
+	    burst += ran;
+	    granted = thread.getTimeSlice();
+
+	    if (used >= quantum(level) && level > priorityMinimum) {
+		level--;
+		used = 0;
+	    }
+	    else if (woken) {
+		if (burst < quantum(level)/2 && level < priorityMaximum) {
+		    level++;
+		    used = 0;
+		}
+		burst = 0;
+	    }
+	}
+
+	/**
+	 * Move this thread to the specified level with a fresh quantum.
+	 */
+	void setLevel(int level) {
+	    FeedbackQueue queue = waitingOn;
+	    if (queue != null)
+		queue.remove(this);
+
+	    this.level = level;
+	    used = 0;
+
+	    if (queue != null)
+		queue.add(this);
+	}
+
+	/**
+	 * Move this thread to the highest level, as part of a boost.
+	 */
+	void boost() {
+	    epoch = MultiLevelFeedbackScheduler.this.epoch;
+	    if (waitingOn == null) {
+		level = priorityMaximum;
+		used = 0;
+		granted = thread.getTimeSlice();
+	    }
+	    // a waiting thread is moved when its queue sees the boost
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** This thread's level. */
+	protected int level = priorityDefault;
+	/** The ticks this thread has used at its level. */
+	protected int used = 0;
+
+	/** The ticks this thread has used since it was last woken up. */
+	int burst = 0;
+	/** This thread's time slice when it last started waiting. */
+	int granted = 0;
+	/** The boost epoch this thread last saw. */
+	int epoch;
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	FeedbackQueue waitingOn = null;
+    }
+}
@@ -3,10 +3,6 @@ package nachos.threads;
 import nachos.machine.*;
 import nachos.threads.FifoQueue;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.*;
 
 
 /**
@@ -62,103 +58,274 @@ public class PriorityScheduler extends Scheduler {
     public static final int priorityMaximum = 7;    
     
     
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return thread.getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getThreadState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	thread.setPriority(priority);
+	getThreadState(thread).update();
+    }
+
     /**
      * Return the scheduling state of the specified thread.
      *
      * @param	thread	the thread whose scheduling state to return.
      * @return	the scheduling state of the specified thread.
      */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Each priority has its own <tt>FifoQueue</tt>, and bit <i>p</i> of
+     * <tt>occupied</tt> is set if and only if the queue for priority <i>p</i>
+     * is not empty. The highest priority with a waiting thread is found from
+     * the bitmap in constant time.
      */
     protected class PriorityQueue extends ThreadQueue {
     	PriorityQueue(boolean transferPriority) {
 	    this.transferPriority = transferPriority;
 	    //create subPriorityQueue for each priority (range of priority:0~7)
-	    for(int i=0;i<=7;i++){
-	    	subPriorityQueue.addElement(new FifoQueue(i));
-	    	subPriorityQueue.get(i).initializer(i);
+	    for(int i=priorityMinimum;i<=priorityMaximum;i++)
+	    	subPriorityQueue[i] = new FifoQueue(i);
+
+	    if (transferPriority) {
+	    	firstWaiter = new ThreadState[priorityMaximum+1];
+	    	lastWaiter = new ThreadState[priorityMaximum+1];
 	    }
-	   
 	}
     	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
-	    if(thread.getPreviousPriority()==thread.getPriority()){
-	    	//priority was not changed
-	    	if (!this.subPriorityQueue.get(thread.getPreviousPriority()).isEmpty()){
-	    		// queue is not empty
-	    		if(this.subPriorityQueue.get(thread.getPreviousPriority()).
-	    												waitQueueHead().getPID()==thread.getPID() ){
-	    			//current thread should be moved to the end of queue, 
-	    			// with unchanged priority.
-	    				//System.out.println("move to end");
-	    				this.subPriorityQueue.get(thread.getPreviousPriority()).removeHead();
-		    			this.subPriorityQueue.get(thread.getPreviousPriority()).waitForAccess(thread);	    			
-	    		}  
-	    		else
-	    			//just add it 
-	    			this.subPriorityQueue.get(thread.getPreviousPriority()).waitForAccess(thread);
-	    	}
-	    	else
-	    		//queue is empty
-	    		//new ready thread
-	    		this.subPriorityQueue.get(thread.getPriority()).waitForAccess(thread);
-	 
-	    	System.out.println("QUEUE OF PRIORITY "+thread.getPreviousPriority()+":");
-	    	this.subPriorityQueue.get(thread.getPreviousPriority()).print();
-	    }
+	    ThreadState state = getThreadState(thread);
 	    
-	    else{
-	    	//priority was changed 	
-	    	//System.out.println("priority was changed, thread ["+thread.getName()+"] pp="+thread.getPreviousPriority()+" p="+thread.getPriority());
-	    	this.subPriorityQueue.get(thread.getPreviousPriority()).removeHead();
-	    	this.subPriorityQueue.get(thread.getPriority()).waitForAccess(thread);
-	    	
-	    	System.out.println("QUEUE OF PRIORITY "+thread.getPriority()+":");
-	    	this.subPriorityQueue.get(thread.getPriority()).print();
-	    	
-	    	System.out.println("QUEUE OF PREVIOUSPRIORITY "+thread.getPreviousPriority()+":");
-	    	this.subPriorityQueue.get(thread.getPreviousPriority()).print();
+	    if (transferPriority) {
+	    	waitForAccess(state);
+	    	return;
+	    }
+
+	    // a thread waits in at most one such queue at a time
+	    Lib.assertTrue(state.queuedIn == null);
+
+	    // threads are filed by effective priority, so donations count here
+	    int priority = state.getEffectivePriority();
+	    state.queuedPriority = priority;
+	    state.queuedIn = this;
+
+	    subPriorityQueue[priority].waitForAccess(thread);
+	    occupied |= 1 << priority;
+
+	    if (Lib.test(dbgQueue)) {
+	    	System.out.println("QUEUE OF PRIORITY "+priority+":");
+	    	subPriorityQueue[priority].print();
 	    }
-	    
 	}
     	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    Lib.assertTrue(this.isEmpty());
+
+	    // the donations of any waiters move to the new holder
+	    if (transferPriority) {
+	    	setHolder(null);
+	    	setHolder(getThreadState(thread));
+	    }
 	}
     	public boolean isEmpty(){
-    		boolean empty=true;
-    		for(int i=0;i<this.subPriorityQueue.size();i++){
-    			empty&=this.subPriorityQueue.get(i).isEmpty();
-    		}
-    		return empty;
+    		return occupied == 0;
     	}
     	
+    	/**
+    	 * Remove and return the first thread of the highest priority, or
+    	 * <tt>null</tt> if no thread is waiting.
+    	 *
+    	 * <p>
+    	 * If this queue transfers priority, the thread becomes the new holder
+    	 * of the resource, receiving the donations of the remaining waiters.
+    	 */
     	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    	return (KThread) this.subPriorityQueue.get(this.currentHighestPriority()).waitQueueHead();
+	    
+	    if (transferPriority) {
+	    	setHolder(null);
+	    	
+	    	ThreadState state = removeHighestWaiter();
+	    	if (state == null)
+	    		return null;
+	    	
+	    	setHolder(state);
+	    	return state.thread;
+	    }
+	    
+	    if (occupied == 0)
+	    	return null;
+
+	    int priority = currentHighestPriority();
+	    FifoQueue queue = subPriorityQueue[priority];
+	    KThread thread = queue.nextThread();
+	    if (queue.isEmpty())
+	    	occupied &= ~(1 << priority);
+
+	    ThreadState state = getThreadState(thread);
+	    state.queuedPriority = -1;
+	    state.queuedIn = null;
+	    return thread;
+    	}
+
+    	/**
+    	 * Add a waiter to a queue that transfers priority, donating its
+    	 * effective priority to the holder.
+    	 */
+    	private void waitForAccess(ThreadState state) {
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    int priority = state.getEffectivePriority();
+	    Lib.assertTrue(priority >= priorityMinimum);
+	    
+	    int oldDonation = currentHighestPriority();
+	    state.waitingOn = this;
+	    addWaiter(state, priority);
+	    donationChanged(oldDonation);
+    	}
+
+    	/**
+    	 * Called when the effective priority of a thread waiting in this
+    	 * queue changes, to move it to its new level.
+    	 *
+    	 * @param	state	the waiting thread.
+    	 * @param	oldPriority	its previous effective priority.
+    	 * @return	the holder, if the donation it receives from this queue
+    	 *		changed, otherwise <tt>null</tt>.
+    	 */
+    	ThreadState waiterChanged(ThreadState state, int oldPriority) {
+	    int oldDonation = currentHighestPriority();
+
+	    removeWaiter(state, oldPriority);
+	    addWaiter(state, state.effectivePriority);
+
+	    if (holder == null || currentHighestPriority() == oldDonation)
+	    	return null;
+
+	    holder.changeDonation(oldDonation, currentHighestPriority());
+	    return holder;
+    	}
+
+    	private void addWaiter(ThreadState state, int priority) {
+	    state.prevWaiter = lastWaiter[priority];
+	    state.nextWaiter = null;
+
+	    if (lastWaiter[priority] == null) {
+	    	firstWaiter[priority] = state;
+	    	occupied |= 1 << priority;
+	    }
+	    else {
+	    	lastWaiter[priority].nextWaiter = state;
+	    }
+	    lastWaiter[priority] = state;
+    	}
+
+    	private void removeWaiter(ThreadState state, int priority) {
+	    if (state.prevWaiter == null)
+	    	firstWaiter[priority] = state.nextWaiter;
+	    else
+	    	state.prevWaiter.nextWaiter = state.nextWaiter;
+
+	    if (state.nextWaiter == null)
+	    	lastWaiter[priority] = state.prevWaiter;
+	    else
+	    	state.nextWaiter.prevWaiter = state.prevWaiter;
+
+	    state.prevWaiter = state.nextWaiter = null;
+	    if (firstWaiter[priority] == null)
+	    	occupied &= ~(1 << priority);
+    	}
+
+    	private ThreadState removeHighestWaiter() {
+	    if (occupied == 0)
+	    	return null;
+
+	    int priority = currentHighestPriority();
+	    ThreadState state = firstWaiter[priority];
+
+	    removeWaiter(state, priority);
+	    state.waitingOn = null;
+	    return state;
+    	}
+
+    	/**
+    	 * Make the specified thread the holder of this queue's resource, or
+    	 * clear the holder if <tt>null</tt>, moving this queue's donation
+    	 * accordingly.
+    	 */
+    	private void setHolder(ThreadState state) {
+	    int donation = currentHighestPriority();
+	    
+	    if (holder != null) {
+	    	holder.changeDonation(donation, -1);
+	    	holder.update();
+	    }
+
+	    holder = state;
+
+	    if (holder != null) {
+	    	holder.changeDonation(-1, donation);
+	    	holder.update();
+	    }
+    	}
+
+    	private void donationChanged(int oldDonation) {
+	    int donation = currentHighestPriority();
+	    
+	    if (holder != null && donation != oldDonation) {
+	    	holder.changeDonation(oldDonation, donation);
+	    	holder.update();
+	    }
     	}
-	    /**
-	     * (1)check whether the current thread is completed by considering the value of totalNeededTimeSlice
-	     * (2)if the thread is completed its work, which is equivalent to totalNeededTimeSlice, then remove it.
-	     * 		else add it to specific subPriorityQueue.
-	     * (3)
-	     */
-	   
 
-	/**
-	 	* Return the next thread that <tt>nextThread()</tt> would return,
-	 * without modifying the state of this queue.
-	 *
-	 * @return	the next thread that <tt>nextThread()</tt> would
-	 *		return.
-	 */
     	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 	}
 
+    	/**
+    	 * Called when the effective priority of a thread waiting in this
+    	 * queue, which does not transfer priority, changes, to move it to the
+    	 * end of its new level.
+    	 *
+    	 * @param	state	the thread.
+    	 */
+    	void queuedChanged(ThreadState state) {
+	    int previousPriority = state.queuedPriority;
+	    int priority = state.effectivePriority;
+	    if (previousPriority == priority)
+	    	return;
+
+	    FifoQueue previousQueue = subPriorityQueue[previousPriority];
+	    Lib.assertTrue(previousQueue.remove(state.thread));
+	    if (previousQueue.isEmpty())
+	    	occupied &= ~(1 << previousPriority);
+	    subPriorityQueue[priority].waitForAccess(state.thread);
+	    occupied |= 1 << priority;
+	    state.queuedPriority = priority;
+    	}
+
 	/**
 	 	* <tt>true</tt> if this queue should transfer priority from waiting
 	 * threads to the owning thread.
@@ -166,7 +333,7 @@ public class PriorityScheduler extends Scheduler {
     	public boolean transferPriority;
 	
 	/**
-	 	* Vector subPriorityQueue is to implement multi-queue dispatching.
+	 	* subPriorityQueue is to implement multi-queue dispatching.
 	 * Each subPriorityQueue has its own queue with specific priority.
 	 * 
 	 * At the same time, as timeSlice varies from priority to priority,
@@ -174,18 +341,144 @@ public class PriorityScheduler extends Scheduler {
 	 * 	
 	 * More details about FifoQueue are in RoundRobinScheduler.
 	 */
-    	public Vector<FifoQueue> subPriorityQueue = new Vector<FifoQueue>(0);
-    	
+    	public FifoQueue[] subPriorityQueue =
+    		new FifoQueue[priorityMaximum+1];
+
+    	/**
+    	 * Bit <i>p</i> is set if some thread with priority <i>p</i> is
+    	 * waiting: in <tt>subPriorityQueue[p]</tt>, or if this queue transfers
+    	 * priority, in the wait list of priority <i>p</i>.
+    	 */
+    	private int occupied = 0;
+
+    	/** The thread holding the resource, if this queue transfers priority. */
+    	private ThreadState holder = null;
+    	/**
+    	 * If this queue transfers priority, the first and last waiting
+    	 * threads at each effective priority. The waiters at a priority are
+    	 * linked through <tt>ThreadState.nextWaiter</tt> in the order they
+    	 * reached it, so a waiter whose priority changes is unlinked in
+    	 * constant time.
+    	 */
+    	private ThreadState[] firstWaiter, lastWaiter;
     	
+    	/**
+    	 * Return the highest priority with a waiting thread, or -1 if no
+    	 * thread is waiting.
+    	 */
     	public int currentHighestPriority(){
-    		int i=subPriorityQueue.size()-1;
-    		while(subPriorityQueue.get(i).isEmpty() && i>=0){
-    			i--;
-    		}
-    		//System.out.println("i="+i);
-    		return i;
+    		return 31 - Integer.numberOfLeadingZeros(occupied);
     	}
     }
-   
-  
+
+    /**
+     * The scheduling state of a thread. This should include the thread's
+     * priority, its effective priority, any objects it owns, and the queue
+     * it's waiting for, if any.
+     *
+     * <p>
+     * The effective priority is cached. The donations a thread receives are
+     * counted by priority, one for each queue it holds whose highest waiter
+     * has that priority, so the highest donation is found from a bitmap.
+     * When a thread's effective priority changes, the change is passed to
+     * the queue it waits in, and from there to that queue's holder, and so
+     * on up the chain, stopping as soon as some effective priority does not
+     * change. A thread at the end of the chain that waits in a queue that
+     * does not transfer priority, such as the ready queue, is moved to its
+     * new level there. Hence each operation costs time
+     * proportional to the length of the donation chain, not to the number
+     * of waiters.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.effectivePriority = thread.getPriority();
+	}
+
+	/**
+	 * Return the effective priority of the associated thread.
+	 *
+	 * @return	the effective priority of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    update();
+	    return effectivePriority;
+	}
+
+	/**
+	 * Recompute the effective priority of this thread, in case its
+	 * priority or its donations changed, and pass any change along the
+	 * donation chain.
+	 */
+	void update() {
+	    ThreadState state = this;
+	    
+	    while (state != null) {
+		int priority = Math.max(state.thread.getPriority(),
+					31 - Integer.numberOfLeadingZeros(
+					    state.donations));
+		if (priority == state.effectivePriority)
+		    return;
+
+		int oldPriority = state.effectivePriority;
+		state.effectivePriority = priority;
+
+		if (state.waitingOn == null) {
+		    if (state.queuedIn != null)
+			state.queuedIn.queuedChanged(state);
+		    return;
+		}
+
+		state = state.waitingOn.waiterChanged(state, oldPriority);
+	    }
+	}
+
+	/**
+	 * Replace a donation of <i>from</i> with a donation of <i>to</i>.
+	 * Either may be -1, meaning no donation. Does not update the effective
+	 * priority.
+	 */
+	void changeDonation(int from, int to) {
+	    if (from >= 0 && --donationCount[from] == 0)
+		donations &= ~(1 << from);
+	    
+	    if (to >= 0 && donationCount[to]++ == 0)
+		donations |= 1 << to;
+	}
+
+	/** The thread with which this object is associated. */	   
+	protected KThread thread;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue that transfers priority this thread is waiting in. */
+	PriorityQueue waitingOn = null;
+	/** The neighbours of this thread in its wait list in <tt>waitingOn</tt>. */
+	ThreadState prevWaiter = null, nextWaiter = null;
+	/**
+	 * The queue that does not transfer priority this thread is waiting in,
+	 * or <tt>null</tt>. A thread waits in at most one such queue: the ready
+	 * queue while it is ready, or the queue of whatever it is blocked on.
+	 * The running thread waits in none, and is filed at its effective
+	 * priority at the time it next waits.
+	 */
+	PriorityQueue queuedIn = null;
+	/** The priority at which this thread is filed in <tt>queuedIn</tt>. */
+	int queuedPriority = -1;
+
+	/** For each priority, the number of donations of that priority. */
+	private int[] donationCount = new int[priorityMaximum+1];
+	/** Bit <i>p</i> is set if <tt>donationCount[p]</tt> is positive. */
+	private int donations = 0;
+    }
+
+    private static final char dbgQueue = 'q';
 }
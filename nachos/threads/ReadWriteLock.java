@@ -0,0 +1,298 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no thread holds or is waiting to
+ * acquire the lock for writing, and then hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, and then
+ * hold it for writing.
+ * <li><tt>releaseRead()</tt>, <tt>releaseWrite()</tt>: release the lock. The
+ * last reader to leave, or a writer, hands the lock to the next waiting
+ * writer, or if there is none, to every waiting reader.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: a reader never overtakes a waiting writer, so a
+ * stream of readers cannot starve writers. Only the thread that acquired the
+ * lock may release it.
+ *
+ * <p>
+ * Waiting threads donate priority, as with a <tt>Lock</tt>. Waiting readers
+ * donate to the writer that holds the lock or, while readers hold it, to
+ * the first writer that started waiting for them. Waiting writers donate to
+ * the writer that holds the lock, or else to the reader with the lowest
+ * effective priority, since a scheduler queue has only one holder; if that
+ * reader leaves before the others, the donation moves to the reader that is
+ * then lowest. A reader waiting behind a waiting writer thus donates,
+ * through that writer, to the readers it waits for.
+ *
+ * <p>
+ * The lock counts how often it is acquired and how often a thread has to
+ * wait, so that heavily contended locks can be found.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && indexOfReader(thread) < 0);
+	numReadAcquires++;
+
+	if (writer == null && numWaitingWriters == 0) {
+	    addReader(thread);
+	}
+	else {
+	    numReadWaits++;
+
+	    if (readQueue == null)
+		readQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	    if (numWaitingReaders++ == 0)
+		readQueue.acquire(writer != null ? writer : nextWriter);
+
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    // the lock was handed over by releaseWrite()
+	    Lib.assertTrue(indexOfReader(thread) >= 0);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	int index = indexOfReader(thread);
+	Lib.assertTrue(index >= 0);
+	readers[index] = readers[--numReaders];
+	readers[numReaders] = null;
+
+	if (numWaitingWriters > 0) {
+	    if (numReaders == 0) {
+		handToWriter();
+	    }
+	    else if (thread == donee) {
+		donee = lowestReader();
+		writeQueue.acquire(donee);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	Lib.assertTrue(writer != thread && indexOfReader(thread) < 0);
+	numWriteAcquires++;
+
+	if (writer == null && numReaders == 0) {
+	    writer = thread;
+	}
+	else {
+	    numWriteWaits++;
+
+	    if (writeQueue == null)
+		writeQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	    if (numWaitingWriters++ == 0) {
+		if (writer == null) {
+		    // readers arriving from now on wait, and donate to this writer
+		    donee = lowestReader();
+		    nextWriter = thread;
+		}
+		writeQueue.acquire(writer != null ? writer : donee);
+	    }
+
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    // the lock was handed over by releaseRead() or releaseWrite()
+	    Lib.assertTrue(writer == thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing.
+     */
+    public void releaseWrite() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(writer == KThread.currentThread());
+
+	if (numWaitingWriters > 0) {
+	    handToWriter();
+	}
+	else {
+	    writer = null;
+
+	    for (; numWaitingReaders > 0; numWaitingReaders--) {
+		KThread reader = readQueue.nextThread();
+		addReader(reader);
+		reader.ready();
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean held = indexOfReader(KThread.currentThread()) >= 0;
+
+	Machine.interrupt().restore(intStatus);
+	return held;
+    }
+
+    /**
+     * Return the number of times this lock has been acquired for reading.
+     *
+     * @return	the number of read acquisitions.
+     */
+    public long getReadAcquireCount() {
+	return numReadAcquires;
+    }
+
+    /**
+     * Return the number of times a thread had to wait to acquire this lock
+     * for reading.
+     *
+     * @return	the number of contended read acquisitions.
+     */
+    public long getReadContendedCount() {
+	return numReadWaits;
+    }
+
+    /**
+     * Return the number of times this lock has been acquired for writing.
+     *
+     * @return	the number of write acquisitions.
+     */
+    public long getWriteAcquireCount() {
+	return numWriteAcquires;
+    }
+
+    /**
+     * Return the number of times a thread had to wait to acquire this lock
+     * for writing.
+     *
+     * @return	the number of contended write acquisitions.
+     */
+    public long getWriteContendedCount() {
+	return numWriteWaits;
+    }
+
+    /**
+     * Hand the lock to the next waiting writer, which now receives the
+     * donations of any waiting readers and writers.
+     */
+    private void handToWriter() {
+	numWaitingWriters--;
+	writer = writeQueue.nextThread();
+	donee = null;
+	nextWriter = null;
+	writer.ready();
+
+	if (numWaitingReaders > 0)
+	    readQueue.acquire(writer);
+    }
+
+    private void addReader(KThread thread) {
+	if (numReaders == readers.length) {
+	    KThread[] grown = new KThread[readers.length*2];
+	    System.arraycopy(readers, 0, grown, 0, numReaders);
+	    readers = grown;
+	}
+
+	readers[numReaders++] = thread;
+    }
+
+    private int indexOfReader(KThread thread) {
+	for (int i=0; i<numReaders; i++) {
+	    if (readers[i] == thread)
+		return i;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the reader with the lowest effective priority.
+     */
+    private KThread lowestReader() {
+	KThread lowest = readers[0];
+	int priority = ThreadedKernel.scheduler.getEffectivePriority(lowest);
+
+	for (int i=1; i<numReaders; i++) {
+	    int p = ThreadedKernel.scheduler.getEffectivePriority(readers[i]);
+	    if (p < priority) {
+		lowest = readers[i];
+		priority = p;
+	    }
+	}
+
+	return lowest;
+    }
+
+    /** The thread holding this lock for writing, or <tt>null</tt>. */
+    private KThread writer = null;
+    /** The threads holding this lock for reading. */
+    private KThread[] readers = new KThread[4];
+    private int numReaders = 0;
+    /** The reader that waiting writers donate to. */
+    private KThread donee = null;
+    /**
+     * While readers hold the lock, the waiting writer that waiting readers
+     * donate to.
+     */
+    private KThread nextWriter = null;
+
+    /** The waiting readers and writers, allocated when one first waits. */
+    private ThreadQueue readQueue = null, writeQueue = null;
+    private int numWaitingReaders = 0, numWaitingWriters = 0;
+
+    private long numReadAcquires = 0, numReadWaits = 0;
+    private long numWriteAcquires = 0, numWriteWaits = 0;
+}
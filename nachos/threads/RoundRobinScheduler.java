@@ -71,13 +71,11 @@ public class RoundRobinScheduler extends Scheduler {
 
 	/**
 	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Priority is not
+	 * donated, so there is nothing to do.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
 	}
 
 	/**
@@ -20,6 +20,13 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * As with <tt>Lock</tt>, a <tt>P()</tt> that does not wait and a <tt>V()</tt>
+ * that wakes no thread only touch the value, and the wait queue is allocated
+ * the first time a thread waits. Such a call does not re-enable interrupts,
+ * so it does not advance the simulated time, and is not a point at which the
+ * current thread can be preempted.
  */
 public class Semaphore {
     /**
@@ -35,16 +42,20 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
-	boolean intStatus = Machine.interrupt().disable();
-
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
-	}
-	else {
+	if (value > 0) {
 	    value--;
+	    return;
 	}
 
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (waitQueue == null)
+	    waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+	numWaiters++;
+	waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -53,15 +64,15 @@ public class Semaphore {
      * sleeping on this semaphore.
      */
     public void V() {
-	boolean intStatus = Machine.interrupt().disable();
-
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
-	}
-	else {
+	if (numWaiters == 0) {
 	    value++;
+	    return;
 	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	numWaiters--;
+	waitQueue.nextThread().ready();
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -99,6 +110,8 @@ public class Semaphore {
     }
 
     private int value;
-    private ThreadQueue waitQueue =
-	ThreadedKernel.scheduler.newThreadQueue(false);
+    /** The threads waiting in <tt>P()</tt>, allocated when one first waits. */
+    private ThreadQueue waitQueue = null;
+    /** The number of threads waiting in <tt>waitQueue</tt>. */
+    private int numWaiters = 0;
 }
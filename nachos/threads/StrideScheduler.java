@@ -0,0 +1,423 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread a share of the resource
+ * proportional to its tickets. Unlike a lottery scheduler, it does so
+ * deterministically: each thread has a <i>stride</i>, inversely proportional
+ * to its tickets, and a <i>pass</i>. The waiting thread with the lowest pass
+ * is always dequeued next, and its pass is then advanced by its stride. Over
+ * any run of dequeues, the error in each thread's share is bounded by a
+ * constant, instead of growing with the square root of the run as it does
+ * for a lottery.
+ *
+ * <p>
+ * Each queue keeps its waiting threads in a 4-ary heap ordered by pass, with
+ * ties broken by arrival order. Each queue also has a <i>global pass</i>,
+ * which advances by the queue's total stride on every dequeue. A thread that
+ * leaves a queue remembers how far its pass was ahead of the global pass,
+ * and resumes that far ahead when it waits again, so a thread cannot build up
+ * credit by blocking.
+ *
+ * <p>
+ * Pass values are <tt>long</tt>s, and are allowed to wrap around. Passes are
+ * only ever compared by the sign of their difference, which stays correct as
+ * long as the passes in one queue are within 2<sup>62</sup> of each other.
+ *
+ * <p>
+ * A stride scheduler must partially solve the priority inversion problem; in
+ * particular, tickets are transferred through locks, and through joins. As
+ * with a lottery scheduler, donated tickets add.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getStrideState(thread).tickets;
+    }
+
+    /**
+     * Get the effective number of tickets of the specified thread, capped at
+     * <tt>Integer.MAX_VALUE</tt>.
+     */
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getStrideState(thread).effectiveTickets,
+			      Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	StrideState state = getStrideState(thread);
+	state.changeTickets(priority - state.tickets);
+	state.tickets = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread holding a single ticket. A thread holding
+     * <i>n</i> tickets has stride <tt>stride1/n</tt>.
+     */
+    public static final long stride1 = 1L << 40;
+
+    /**
+     * Return the stride of a thread or queue holding the specified number of
+     * tickets.
+     */
+    static long stride(long tickets) {
+	return Math.max(stride1 / tickets, 1);
+    }
+
+    /**
+     * Return the stride state of the specified thread.
+     *
+     * @param	thread	the thread whose stride state to return.
+     * @return	the stride state of the specified thread.
+     */
+    protected StrideState getStrideState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the lowest
+     * pass. The waiting threads are kept in a 4-ary heap; each thread records
+     * its index in the heap, so it can be moved when its tickets change.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    StrideState state = getStrideState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (size == heap.length) {
+		StrideState[] grown = new StrideState[heap.length*2];
+		System.arraycopy(heap, 0, grown, 0, size);
+		heap = grown;
+	    }
+
+	    state.waitingOn = this;
+	    state.pass = globalPass + state.remain;
+	    state.arrival = numArrivals++;
+	    totalTickets += state.effectiveTickets;
+	    siftUp(state, size++);
+
+	    if (transferPriority && holder != null)
+		holder.changeTickets(state.effectiveTickets);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the tickets of any waiters move to the new holder
+	    if (transferPriority) {
+		if (holder != null)
+		    holder.changeTickets(-totalTickets);
+		holder = getStrideState(thread);
+		holder.changeTickets(totalTickets);
+	    }
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (transferPriority && holder != null) {
+		holder.changeTickets(-totalTickets);
+		holder = null;
+	    }
+
+	    if (size == 0)
+		return null;
+
+	    StrideState winner = heap[0];
+
+	    // charge the winner, and the queue, one quantum
+	    globalPass += stride(totalTickets);
+	    winner.pass += stride(winner.effectiveTickets);
+	    remove(winner);
+
+	    if (transferPriority) {
+		holder = winner;
+		holder.changeTickets(totalTickets);
+	    }
+
+	    return winner.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" +
+				 (heap[i].pass - globalPass) + ") ");
+	}
+
+	/**
+	 * Remove a waiting thread, remembering how far its pass is ahead of
+	 * the global pass.
+	 */
+	private void remove(StrideState state) {
+	    int index = state.index;
+	    StrideState last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != state) {
+		if (index > 0 && before(last, heap[(index-1)/4]))
+		    siftUp(last, index);
+		else
+		    siftDown(last, index);
+	    }
+
+	    totalTickets -= state.effectiveTickets;
+	    state.remain = state.pass - globalPass;
+	    state.waitingOn = null;
+	}
+
+	/**
+	 * Change the tickets of a waiting thread by <i>delta</i>. The part of
+	 * its stride that it has yet to wait is scaled to its new stride.
+	 */
+	void changeTickets(StrideState state, long delta) {
+	    long oldStride = stride(state.effectiveTickets);
+	    long newStride = stride(state.effectiveTickets + delta);
+
+	    state.effectiveTickets += delta;
+	    totalTickets += delta;
+
+	    long remain = state.pass - globalPass;
+	    state.pass = globalPass +
+		(long) ((double) remain * newStride / oldStride);
+
+	    if (newStride < oldStride)
+		siftUp(state, state.index);
+	    else
+		siftDown(state, state.index);
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>.
+	 */
+	private boolean before(StrideState a, StrideState b) {
+	    long difference = a.pass - b.pass;
+	    if (difference != 0)
+		return difference < 0;
+
+	    return a.arrival - b.arrival < 0;
+	}
+
+	/**
+	 * Place <i>state</i> at <i>index</i>, or above it if it should be
+	 * dequeued before its parent.
+	 */
+	private void siftUp(StrideState state, int index) {
+	    while (index > 0) {
+		int parent = (index-1)/4;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].index = index;
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	    state.index = index;
+	}
+
+	/**
+	 * Place <i>state</i> at <i>index</i>, or below it if one of its
+	 * children should be dequeued before it.
+	 */
+	private void siftDown(StrideState state, int index) {
+	    while (true) {
+		int child = index*4 + 1;
+		if (child >= size)
+		    break;
+
+		int best = child;
+		int end = Math.min(child+4, size);
+		for (int i=child+1; i<end; i++) {
+		    if (before(heap[i], heap[best]))
+			best = i;
+		}
+
+		if (!before(heap[best], state))
+		    break;
+
+		heap[index] = heap[best];
+		heap[index].index = index;
+		index = best;
+	    }
+
+	    heap[index] = state;
+	    state.index = index;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread holding the resource, if this queue transfers tickets. */
+	private StrideState holder = null;
+	/** The waiting threads, as a 4-ary heap ordered by pass. */
+	private StrideState[] heap = new StrideState[8];
+	/** The number of waiting threads. */
+	private int size = 0;
+	/** The total effective tickets of all waiting threads. */
+	private long totalTickets = 0;
+	/** The pass of this queue, advanced by its total stride. */
+	private long globalPass = 0;
+	/** The number of times a thread has waited in this queue. */
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The stride state of a thread: its own tickets, its effective tickets,
+     * its pass, and the queue it is waiting in, if any.
+     *
+     * <p>
+     * A thread's effective tickets are its own tickets plus the total
+     * tickets waiting in each queue that transfers tickets and that it holds.
+     * A change is passed up the donation chain as a difference, as in
+     * <tt>LotteryScheduler</tt>.
+     */
+    protected class StrideState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of this thread, and to
+	 * those of every thread it donates to.
+	 */
+	void changeTickets(long delta) {
+	    StrideState state = this;
+
+	    while (state != null && delta != 0) {
+		StrideQueue queue = state.waitingOn;
+		if (queue == null) {
+		    long oldStride = stride(state.effectiveTickets);
+		    state.effectiveTickets += delta;
+		    state.remain = (long) ((double) state.remain *
+					   stride(state.effectiveTickets) /
+					   oldStride);
+		    return;
+		}
+
+		queue.changeTickets(state, delta);
+		state = queue.transferPriority ? queue.holder : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** This thread's own tickets. */
+	protected int tickets = priorityDefault;
+	/** This thread's tickets plus the tickets donated to it. */
+	protected long effectiveTickets = priorityDefault;
+
+	/** This thread's pass, while it is waiting. */
+	long pass;
+	/**
+	 * How far this thread's pass is ahead of the global pass of the queue
+	 * it last left. A new thread starts one stride ahead.
+	 */
+	long remain = stride(priorityDefault);
+	/** When this thread started waiting, to order threads of equal pass. */
+	long arrival;
+
+	/** The queue this thread is waiting in, or <tt>null</tt>. */
+	StrideQueue waitingOn = null;
+	/** This thread's index in the heap of <tt>waitingOn</tt>. */
+	int index;
+    }
+}
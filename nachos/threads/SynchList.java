@@ -1,25 +1,52 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
  * A synchronized queue.
+ *
+ * <p>
+ * The queue is kept in an array used as a ring, so adding an object does not
+ * allocate memory unless an unbounded queue has to grow. A bounded queue
+ * never grows: <tt>add()</tt> waits while it is full.
+ *
+ * <p>
+ * Waiting threads are only woken when the queue stops being empty or full.
+ * A woken thread wakes the next waiting thread itself if there is still
+ * something for it to do, so every object is taken without waking a thread
+ * for each one.
  */
 public class SynchList {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new unbounded synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(0);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * objects.
+     *
+     * @param	capacity	the most objects the queue can hold, or 0 if
+     *				the queue is unbounded.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	list = new Object[capacity > 0 ? capacity : 8];
 	lock = new Lock();
 	listEmpty = new Condition(lock);
+	listFull = new Condition(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, first waiting until
+     * the queue is not full if it is bounded. If another thread is waiting
+     * in <tt>removeFirst()</tt>, it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
@@ -27,8 +54,24 @@ public class SynchList {
 	Lib.assertTrue(o != null);
 	
 	lock.acquire();
-	list.add(o);
-	listEmpty.wake();
+
+	if (capacity > 0) {
+	    while (count == capacity)
+		listFull.sleep();
+	}
+	else if (count == list.length) {
+	    grow();
+	}
+
+	list[(first + count) % list.length] = o;
+	count++;
+
+	if (count == 1)
+	    listEmpty.wake();
+	// pass on a wake-up that made room for more than one object
+	if (count < capacity)
+	    listFull.wake();
+
 	lock.release();
     }
 
@@ -42,14 +85,64 @@ public class SynchList {
 	Object o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+
+	o = remove();
+
+	// pass on a wake-up that was for more than one object
+	if (count > 0)
+	    listEmpty.wake();
+	if (count == capacity-1)
+	    listFull.wake();
+
 	lock.release();
 
 	return o;
     }
 
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue, and add
+     * them to the specified collection in order, without waiting. The queue
+     * is locked only once.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<Object> c, int max) {
+	lock.acquire();
+
+	int amount = Math.min(count, max);
+	for (int i=0; i<amount; i++)
+	    c.add(remove());
+
+	if (amount > 0 && count+amount == capacity)
+	    listFull.wake();
+
+	lock.release();
+
+	return amount;
+    }
+
+    private Object remove() {
+	Object o = list[first];
+	list[first] = null;
+	first = (first + 1) % list.length;
+	count--;
+
+	return o;
+    }
+
+    private void grow() {
+	Object[] grown = new Object[list.length*2];
+	for (int i=0; i<count; i++)
+	    grown[i] = list[(first + i) % list.length];
+
+	list = grown;
+	first = 0;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -81,8 +174,14 @@ public class SynchList {
 	}
     }
 
-    private LinkedList<Object> list;
+    /** The queued objects, as a ring starting at <tt>first</tt>. */
+    private Object[] list;
+    private int first = 0;
+    private int count = 0;
+    /** The most objects the queue can hold, or 0 if it is unbounded. */
+    private int capacity;
     private Lock lock;
     private Condition listEmpty;
+    private Condition listFull;
 }
 
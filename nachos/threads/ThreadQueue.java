@@ -83,6 +83,12 @@ public abstract class ThreadQueue {
      * should call this method.
      *
      * <p>
+     * This method may also be called while other threads are waiting, to
+     * give access to a different thread than the one that had it. If the
+     * limited access object transfers priority, the waiting threads then
+     * donate priority to that thread instead.
+     *
+     * <p>
      * This method should not be called for a thread returned from
      * <tt>nextThread()</tt>.
      *
@@ -83,4 +83,8 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MultiLevelFeedbackScheduler dummy9 = null;
+    private static FairScheduler dummy10 = null;
+    private static DeadlineScheduler dummy11 = null;
 }
@@ -27,6 +27,9 @@ public class UserProcess {
 	pageTable = new TranslationEntry[numPhysPages];
 	for (int i=0; i<numPhysPages; i++)
 	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+
+	fileTable[0] = UserKernel.console.openForReading();
+	fileTable[1] = UserKernel.console.openForWriting();
     }
     
     /**
@@ -89,9 +92,11 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
+	// short strings, such as file names, are read into the scratch page
+	byte[] bytes = (maxLength < pageSize) ? scratchPage
+					      : new byte[maxLength+1];
 
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	int bytesRead = readVirtualMemory(vaddr, bytes, 0, maxLength+1);
 
 	for (int length=0; length<bytesRead; length++) {
 	    if (bytes[length] == 0)
@@ -131,14 +136,21 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	Processor processor = Machine.processor();
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = 0;
+	while (amount < length) {
+	    TranslationEntry entry = translate(vaddr+amount, false);
+	    if (entry == null)
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+	    processor.readMemory(entry.ppn*pageSize + pageOffset,
+				 data, offset+amount, chunk);
+	    entry.used = true;
+	    amount += chunk;
+	}
 
 	return amount;
     }
@@ -174,18 +186,50 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	Processor processor = Machine.processor();
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = 0;
+	while (amount < length) {
+	    TranslationEntry entry = translate(vaddr+amount, true);
+	    if (entry == null)
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+	    processor.writeMemory(entry.ppn*pageSize + pageOffset,
+				  data, offset+amount, chunk);
+	    entry.used = entry.dirty = true;
+	    amount += chunk;
+	}
 
 	return amount;
     }
 
+    /**
+     * Return the page table entry that maps the specified virtual address,
+     * or <tt>null</tt> if the address is not mapped to a physical page, or if
+     * <i>write</i> is <tt>true</tt> and the page is read-only.
+     *
+     * @param	vaddr	the virtual address.
+     * @param	write	<tt>true</tt> if the address is to be written.
+     * @return	the page table entry, or <tt>null</tt>.
+     */
+    protected TranslationEntry translate(int vaddr, boolean write) {
+	if (vaddr < 0)
+	    return null;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid || (write && entry.readOnly) ||
+	    entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+	    return null;
+
+	return entry;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -346,6 +390,125 @@ public class UserProcess {
 	return 0;
     }
 
+    /**
+     * Handle the creat() and open() system calls.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	int fd = 0;
+	while (fd < fileTable.length && fileTable[fd] != null)
+	    fd++;
+	if (fd == fileTable.length)
+	    return -1;
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = file;
+	return fd;
+    }
+
+    /**
+     * Handle the read() and write() system calls. Data is moved one page at
+     * a time. If physical memory is on the heap, it is moved directly between
+     * the file and the memory array; otherwise each page passes through the
+     * scratch page. No buffer is allocated either way. The whole buffer is
+     * checked before any data is moved, so that a bad buffer does not consume
+     * data from the file.
+     */
+    private int handleTransfer(int fd, int vaddr, int size, boolean read) {
+	OpenFile file = getFile(fd);
+	if (file == null || size < 0 || vaddr < 0 ||
+	    (long) vaddr + size > (long) pageTable.length*pageSize)
+	    return -1;
+
+	if (size > 0) {
+	    int lastVPN = Processor.pageFromAddress(vaddr+size-1);
+	    for (int vpn=Processor.pageFromAddress(vaddr); vpn<=lastVPN; vpn++) {
+		if (translate(Processor.makeAddress(vpn, 0), read) == null)
+		    return -1;
+	    }
+	}
+
+	Processor processor = Machine.processor();
+	byte[] memory = processor.getMemoryArray();
+
+	int amount = 0;
+	while (amount < size) {
+	    TranslationEntry entry = translate(vaddr+amount, read);
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int chunk = Math.min(size-amount, pageSize-pageOffset);
+	    int paddr = entry.ppn*pageSize + pageOffset;
+
+	    int count;
+	    if (memory != null) {
+		count = read ? file.read(memory, paddr, chunk)
+			     : file.write(memory, paddr, chunk);
+		if (read && count > 0)
+		    processor.invalidateMemory(paddr, count);
+	    }
+	    else if (read) {
+		count = file.read(scratchPage, 0, chunk);
+		if (count > 0)
+		    processor.writeMemory(paddr, scratchPage, 0, count);
+	    }
+	    else {
+		processor.readMemory(paddr, scratchPage, 0, chunk);
+		count = file.write(scratchPage, 0, chunk);
+	    }
+	    if (count < 0)
+		return (amount > 0) ? amount : -1;
+
+	    entry.used = true;
+	    if (read && count > 0)
+		entry.dirty = true;
+
+	    amount += count;
+	    if (count < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getFile(fd);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = null;
+	file.close();
+	return 0;
+    }
+
+    /**
+     * Handle the unlink() system call.
+     */
+    private int handleUnlink(int nameAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxNameLength);
+	if (name == null)
+	    return -1;
+
+	return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+    }
+
+    /**
+     * Return the file open with the specified descriptor, or <tt>null</tt>.
+     */
+    private OpenFile getFile(int fd) {
+	if (fd < 0 || fd >= fileTable.length)
+	    return null;
+
+	return fileTable[fd];
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -391,7 +554,18 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleTransfer(a0, a1, a2, true);
+	case syscallWrite:
+	    return handleTransfer(a0, a1, a2, false);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -440,10 +614,22 @@ public class UserProcess {
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
+
+    /**
+     * The files this process has open, indexed by file descriptor. Standard
+     * input and output are descriptors 0 and 1.
+     */
+    protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+    /** A page for short strings read from virtual memory, reused. */
+    private byte[] scratchPage = new byte[pageSize];
     
     private int initialPC, initialSP;
     private int argc, argv;
 	
     private static final int pageSize = Processor.pageSize;
+    /** The most files a process can have open at once. */
+    private static final int maxOpenFiles = 16;
+    /** The longest file name a syscall accepts, not counting the null. */
+    private static final int maxNameLength = 256;
     private static final char dbgProcess = 'a';
 }